@@ -0,0 +1,52 @@
+package br.coto.keycloak.otp;
+
+import br.coto.keycloak.otp.helpers.OtpCodes;
+import br.coto.keycloak.otp.helpers.PhoneNumbers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PhoneNumberBenchmark {
+
+    // Fields rather than constants, so the JIT cannot fold the code check
+    private String expectedCode = "123456";
+    private String enteredCode = "123457";
+
+    @Param({"+5511987654321", "+55 11 98765-4321", "11987654321"})
+    public String phoneNumber;
+
+    @Benchmark
+    public boolean isValidPhoneNumber() {
+        return PhoneNumbers.isValid(phoneNumber);
+    }
+
+    @Benchmark
+    public String normalizePhoneNumber() {
+        return PhoneNumbers.normalize(phoneNumber);
+    }
+
+    @Benchmark
+    public String maskPhoneNumber() {
+        return PhoneNumbers.mask(phoneNumber);
+    }
+
+    @Benchmark
+    public boolean checkCode() {
+        return OtpCodes.isDigits(enteredCode) && OtpCodes.matches(expectedCode, enteredCode);
+    }
+}
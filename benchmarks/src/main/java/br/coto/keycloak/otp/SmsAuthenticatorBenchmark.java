@@ -0,0 +1,157 @@
+package br.coto.keycloak.otp;
+
+import br.coto.keycloak.otp.helpers.SMSFields;
+import br.coto.keycloak.otp.loadtest.FakeKeycloak;
+import br.coto.keycloak.otp.loadtest.FakeLogin;
+import br.coto.keycloak.otp.loadtest.Fakes;
+import org.keycloak.authentication.Authenticator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-login cost of the authenticator itself: the simulate broker is used, so no network is involved.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SmsAuthenticatorBenchmark {
+
+    private static final String PHONE_NUMBER = "+5511987654321";
+    private static final int LOCKOUT_ATTEMPTS = 3;
+
+    @Param({"false", "true"})
+    public String asyncDispatch;
+
+    private SmsAuthenticatorFactory factory;
+    private Authenticator authenticator;
+    private FakeKeycloak keycloak;
+
+    @State(Scope.Thread)
+    public static class Login {
+        private FakeLogin login;
+
+        @Setup(Level.Trial)
+        public void setup(SmsAuthenticatorBenchmark benchmark) {
+            login = benchmark.keycloak.newLogin(UUID.randomUUID().toString(), PHONE_NUMBER);
+        }
+    }
+
+    /**
+     * A user whose wrong codes are forgotten before each call, so every call checks the code it submits.
+     */
+    @State(Scope.Thread)
+    public static class FirstFailure {
+        private FakeLogin login;
+        private FakeKeycloak keycloak;
+
+        @Setup(Level.Trial)
+        public void setup(SmsAuthenticatorBenchmark benchmark) {
+            keycloak = benchmark.keycloak;
+            login = keycloak.newLogin(UUID.randomUUID().toString(), PHONE_NUMBER);
+        }
+
+        @Setup(Level.Invocation)
+        public void forgetFailures() {
+            keycloak.clearSingleUseObjects();
+        }
+    }
+
+    /**
+     * A user locked out by as many wrong codes as the lockout threshold, for the whole trial.
+     */
+    @State(Scope.Thread)
+    public static class LockedOut {
+        private FakeLogin login;
+
+        @Setup(Level.Trial)
+        public void setup(SmsAuthenticatorBenchmark benchmark) {
+            login = benchmark.keycloak.newLogin(UUID.randomUUID().toString(), PHONE_NUMBER);
+            for (int i = 0; i < LOCKOUT_ATTEMPTS; i++) {
+                login.prepareCode("123456", 300_000);
+                login.enterCode("654321");
+                benchmark.authenticator.action(login.getContext());
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        Map<String, String> config = new HashMap<>();
+        config.put(SMSFields.SIMULATION_MODE.getValue(), "true");
+        config.put(SMSFields.CODE_LENGTH.getValue(), "6");
+        config.put(SMSFields.CODE_TTL.getValue(), "300");
+        config.put(SMSFields.RATE_LIMIT_BURST.getValue(), "0");
+        config.put(SMSFields.ASYNC_DISPATCH.getValue(), asyncDispatch);
+        config.put(SMSFields.LOCKOUT_ATTEMPTS.getValue(), Integer.toString(LOCKOUT_ATTEMPTS));
+        keycloak = new FakeKeycloak(config);
+        factory = new SmsAuthenticatorFactory();
+        factory.init(Fakes.scope(Map.of()));
+        authenticator = factory.create(null);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        factory.close();
+    }
+
+    /**
+     * First visit of the code form: code generation, rendering of the SMS text and send.
+     */
+    @Benchmark
+    public String authenticate(Login state) {
+        state.login.reset();
+        authenticator.authenticate(state.login.getContext());
+        return state.login.getOutcome();
+    }
+
+    /**
+     * Submission of the right code. Includes putting a fresh code in the session notes.
+     */
+    @Benchmark
+    public String action(Login state) {
+        state.login.prepareCode("123456", 300_000);
+        authenticator.action(state.login.getContext());
+        return state.login.getOutcome();
+    }
+
+    /**
+     * Submission of a wrong code by a user without recent failures: the code is checked and the failure counted.
+     */
+    @Benchmark
+    public String actionWrongCode(FirstFailure state) {
+        state.login.prepareCode("123456", 300_000);
+        state.login.enterCode("654321");
+        authenticator.action(state.login.getContext());
+        return state.login.getOutcome();
+    }
+
+    /**
+     * Submission of a code by a locked out user: refused without checking the code.
+     */
+    @Benchmark
+    public String actionLockedOut(LockedOut state) {
+        state.login.prepareCode("123456", 300_000);
+        state.login.enterCode("654321");
+        authenticator.action(state.login.getContext());
+        return state.login.getOutcome();
+    }
+}
@@ -0,0 +1,81 @@
+package br.coto.keycloak.otp.brokers.zenvia;
+
+import br.coto.keycloak.otp.brokers.BrokerConfig;
+import br.coto.keycloak.otp.loadtest.LatencyDistribution;
+import br.coto.keycloak.otp.loadtest.StubSmsServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Zenvia payload building and sends through the real HTTP client to a loopback {@link StubSmsServer}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ZenviaBrokerBenchmark {
+
+    private static final String PHONE_NUMBER = "+5511987654321";
+    private static final String MESSAGE = "Use the code 123456 to authenticate on Coto.";
+
+    private StubSmsServer stub;
+    private ZenviaBrokerService service;
+    private ZenviaBrokerService batchingService;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        stub = new StubSmsServer("127.0.0.1", 0, LatencyDistribution.NONE, 0, 0, 0, 64);
+        service = new ZenviaBrokerService(config(1));
+        batchingService = new ZenviaBrokerService(config(20));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        service.close();
+        batchingService.close();
+        stub.close();
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public String buildJsonPayload() {
+        return service.buildJsonPayload(PHONE_NUMBER, MESSAGE);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void send() throws Exception {
+        service.send(PHONE_NUMBER, MESSAGE);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public void sendBatched() throws Exception {
+        batchingService.send(PHONE_NUMBER, MESSAGE);
+    }
+
+    private BrokerConfig config(int batchMaxSize) {
+        return BrokerConfig.builder()
+                .key("benchmark")
+                .secret("benchmark")
+                .shortCode("benchmark")
+                .baseUrl(stub.getBaseUrl())
+                .batchMaxSize(batchMaxSize)
+                .build();
+    }
+}
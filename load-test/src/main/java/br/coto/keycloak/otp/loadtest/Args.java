@@ -0,0 +1,66 @@
+package br.coto.keycloak.otp.loadtest;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Command line options given as {@code --name value}; an option without value is {@code true}.
+ */
+final class Args {
+
+    private final Map<String, String> values;
+
+    private Args(Map<String, String> values) {
+        this.values = values;
+    }
+
+    static Args parse(String[] args) {
+        Map<String, String> values = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument: " + args[i]);
+            }
+            String name = args[i].substring(2);
+            if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                values.put(name, args[++i]);
+            } else {
+                values.put(name, "true");
+            }
+        }
+        return new Args(values);
+    }
+
+    String get(String name, String defaultValue) {
+        return values.getOrDefault(name, defaultValue);
+    }
+
+    int getInt(String name, int defaultValue) {
+        return values.containsKey(name) ? Integer.parseInt(values.get(name)) : defaultValue;
+    }
+
+    double getDouble(String name, double defaultValue) {
+        return values.containsKey(name) ? Double.parseDouble(values.get(name)) : defaultValue;
+    }
+
+    boolean getBoolean(String name) {
+        return Boolean.parseBoolean(values.get(name));
+    }
+
+    /**
+     * Reads a {@code key=value,key=value} option.
+     */
+    Map<String, String> getPairs(String name) {
+        Map<String, String> pairs = new HashMap<>();
+        String value = values.get(name);
+        if (value != null && !value.isEmpty()) {
+            for (String pair : value.split(",")) {
+                int separator = pair.indexOf('=');
+                if (separator <= 0) {
+                    throw new IllegalArgumentException("Expected key=value in --" + name + ": " + pair);
+                }
+                pairs.put(pair.substring(0, separator).trim(), pair.substring(separator + 1).trim());
+            }
+        }
+        return pairs;
+    }
+}
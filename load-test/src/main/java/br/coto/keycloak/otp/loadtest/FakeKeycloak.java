@@ -0,0 +1,113 @@
+package br.coto.keycloak.otp.loadtest;
+
+import org.keycloak.models.AuthenticationExecutionModel;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakContext;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.SingleUseObjectProvider;
+import org.keycloak.models.ThemeManager;
+import org.keycloak.theme.Theme;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The Keycloak objects shared by every login of a run: session, realm, client, authenticator config and execution.
+ * The session answers single-use objects from memory, the English messages of the authenticator jar and the
+ * {@code en} locale.
+ */
+public class FakeKeycloak {
+
+    public static final String REALM_ID = "load-test";
+
+    private final Map<String, Map<String, String>> singleUseObjects = new ConcurrentHashMap<>();
+    private final KeycloakSession session;
+    private final RealmModel realm;
+    private final ClientModel client;
+    private final AuthenticatorConfigModel config;
+    private final AuthenticationExecutionModel execution;
+
+    public FakeKeycloak(Map<String, String> authenticatorConfig) throws IOException {
+        this.realm = Fakes.of(RealmModel.class, Map.of(
+                "getId", args -> REALM_ID,
+                "getName", args -> REALM_ID));
+        this.client = Fakes.of(ClientModel.class, Map.of());
+        this.session = session(singleUseObjects, messages());
+        this.config = new AuthenticatorConfigModel();
+        this.config.setId("load-test-config");
+        this.config.setAlias("load-test");
+        this.config.setConfig(authenticatorConfig);
+        this.execution = new AuthenticationExecutionModel();
+        this.execution.setRequirement(AuthenticationExecutionModel.Requirement.REQUIRED);
+    }
+
+    public FakeLogin newLogin(String userId, String phoneNumber) {
+        return new FakeLogin(this, userId, phoneNumber);
+    }
+
+    /**
+     * Forgets the single-use objects of every login: rate limits, wrong code counts and lockouts.
+     */
+    public void clearSingleUseObjects() {
+        singleUseObjects.clear();
+    }
+
+    KeycloakSession getSession() {
+        return session;
+    }
+
+    RealmModel getRealm() {
+        return realm;
+    }
+
+    ClientModel getClient() {
+        return client;
+    }
+
+    AuthenticatorConfigModel getConfig() {
+        return config;
+    }
+
+    AuthenticationExecutionModel getExecution() {
+        return execution;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static KeycloakSession session(Map<String, Map<String, String>> singleUseObjects, Properties messages) {
+        SingleUseObjectProvider store = Fakes.of(SingleUseObjectProvider.class, Map.of(
+                "get", args -> singleUseObjects.get((String) args[0]),
+                "put", args -> singleUseObjects.put((String) args[0], (Map<String, String>) args[2]),
+                "remove", args -> singleUseObjects.remove((String) args[0]),
+                "putIfAbsent", args -> singleUseObjects.putIfAbsent((String) args[0], Map.of()) == null,
+                "replace", args -> singleUseObjects.computeIfPresent((String) args[0], (key, notes) -> (Map<String, String>) args[1]) != null,
+                "contains", args -> singleUseObjects.containsKey((String) args[0])));
+        Theme theme = Fakes.of(Theme.class, Map.of(
+                "getName", args -> "keycloak",
+                "getMessages", args -> messages));
+        ThemeManager themes = Fakes.of(ThemeManager.class, Map.of(
+                "getTheme", args -> theme));
+        KeycloakContext keycloakContext = Fakes.of(KeycloakContext.class, Map.of(
+                "resolveLocale", args -> Locale.ENGLISH));
+        return Fakes.of(KeycloakSession.class, Map.of(
+                "singleUseObjects", args -> store,
+                "theme", args -> themes,
+                "getContext", args -> keycloakContext));
+    }
+
+    private static Properties messages() throws IOException {
+        Properties messages = new Properties();
+        try (InputStream in = FakeKeycloak.class.getClassLoader().getResourceAsStream("theme-resources/messages/messages_en.properties")) {
+            if (in == null) {
+                throw new IOException("messages_en.properties not found, is the authenticator jar on the classpath?");
+            }
+            messages.load(in);
+        }
+        return messages;
+    }
+}
@@ -0,0 +1,115 @@
+package br.coto.keycloak.otp.loadtest;
+
+import br.coto.keycloak.otp.helpers.SMSFields;
+import br.coto.keycloak.otp.settings.SmsSettings;
+import jakarta.ws.rs.core.MultivaluedHashMap;
+import org.keycloak.authentication.AuthenticationFlowContext;
+import org.keycloak.forms.login.LoginFormsProvider;
+import org.keycloak.http.HttpRequest;
+import org.keycloak.models.UserModel;
+import org.keycloak.sessions.AuthenticationSessionModel;
+import org.keycloak.sessions.RootAuthenticationSessionModel;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * One browser login of a user: its authentication session notes, the submitted form and the outcome of the last
+ * authenticator call ({@code challenge}, {@code success}, {@code attempted}, or the flow error and message key).
+ * Not thread safe; {@link #reset()} makes it reusable for a new login.
+ */
+public class FakeLogin {
+
+    private final String phoneNumber;
+    private final Map<String, String> notes = new HashMap<>();
+    private final MultivaluedHashMap<String, String> form = new MultivaluedHashMap<>();
+    private final AuthenticationFlowContext context;
+    private String outcome;
+    private String error;
+
+    FakeLogin(FakeKeycloak keycloak, String userId, String phoneNumber) {
+        this.phoneNumber = phoneNumber;
+        UserModel user = Fakes.of(UserModel.class, Map.of(
+                "getId", args -> userId,
+                "getUsername", args -> "user-" + userId,
+                "getFirstAttribute", args -> SmsSettings.DEFAULT_PHONE_ATTRIBUTE.equals(args[0]) ? phoneNumber : null));
+        RootAuthenticationSessionModel rootSession = Fakes.of(RootAuthenticationSessionModel.class, Map.of(
+                "getId", args -> userId));
+        AuthenticationSessionModel authSession = Fakes.of(AuthenticationSessionModel.class, Map.of(
+                "getAuthNote", args -> notes.get((String) args[0]),
+                "setAuthNote", args -> notes.put((String) args[0], (String) args[1]),
+                "removeAuthNote", args -> notes.remove((String) args[0]),
+                "getParentSession", args -> rootSession,
+                "getTabId", args -> "tab",
+                "getClient", args -> keycloak.getClient()));
+        HttpRequest request = Fakes.of(HttpRequest.class, Map.of(
+                "getDecodedFormParameters", args -> form));
+        LoginFormsProvider forms = Fakes.of(LoginFormsProvider.class, Map.of());
+        LoginFormsProvider formsWithError = Fakes.of(LoginFormsProvider.class, Map.of(
+                "setError", args -> {
+                    error = (String) args[0];
+                    return forms;
+                }));
+
+        Map<String, Function<Object[], Object>> answers = new HashMap<>();
+        answers.put("getSession", args -> keycloak.getSession());
+        answers.put("getRealm", args -> keycloak.getRealm());
+        answers.put("getUser", args -> user);
+        answers.put("getAuthenticationSession", args -> authSession);
+        answers.put("getAuthenticatorConfig", args -> keycloak.getConfig());
+        answers.put("getExecution", args -> keycloak.getExecution());
+        answers.put("getHttpRequest", args -> request);
+        answers.put("form", args -> formsWithError);
+        answers.put("challenge", args -> outcome = "challenge");
+        answers.put("failureChallenge", args -> outcome = args[0] + "/" + error);
+        answers.put("failure", args -> outcome = args[0] + "/" + error);
+        answers.put("success", args -> outcome = "success");
+        answers.put("attempted", args -> outcome = "attempted");
+        this.context = Fakes.of(AuthenticationFlowContext.class, answers);
+    }
+
+    public AuthenticationFlowContext getContext() {
+        return context;
+    }
+
+    public String getOutcome() {
+        return outcome;
+    }
+
+    /**
+     * Code sent by the last {@code authenticate} call.
+     */
+    public String getSentCode() {
+        return notes.get(SMSFields.CODE.getValue());
+    }
+
+    /**
+     * Submits {@code code} on the next {@code action} call.
+     */
+    public void enterCode(String code) {
+        form.putSingle(SMSFields.CODE.getValue(), code);
+        outcome = null;
+        error = null;
+    }
+
+    /**
+     * Puts a code in the session as if {@code authenticate} had just sent it, without going through it.
+     */
+    public void prepareCode(String code, long ttlMillis) {
+        long now = System.currentTimeMillis();
+        notes.put(SMSFields.CODE.getValue(), code);
+        notes.put(SMSFields.CODE_TTL.getValue(), Long.toString(now + ttlMillis));
+        notes.put(SMSFields.CODE_SENT_AT.getValue(), Long.toString(now));
+        notes.put(SMSFields.CODE_PHONE.getValue(), phoneNumber);
+        notes.remove(SMSFields.CODE_ATTEMPTS.getValue());
+        enterCode(code);
+    }
+
+    public void reset() {
+        notes.clear();
+        form.clear();
+        outcome = null;
+        error = null;
+    }
+}
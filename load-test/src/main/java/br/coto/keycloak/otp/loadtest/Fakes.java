@@ -0,0 +1,84 @@
+package br.coto.keycloak.otp.loadtest;
+
+import org.keycloak.Config;
+
+import java.lang.reflect.Proxy;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Minimal stand-ins for the Keycloak interfaces used by the authenticator, built as dynamic proxies.
+ * <p>
+ * Methods without an answer return the proxy itself when its type fits (fluent builders such as the login forms
+ * provider), otherwise {@code null}, {@code false} or zero.
+ */
+public final class Fakes {
+
+    private Fakes() {
+    }
+
+    public static <T> T of(Class<T> type, Map<String, Function<Object[], Object>> answers) {
+        return type.cast(Proxy.newProxyInstance(Fakes.class.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            Object[] arguments = args != null ? args : new Object[0];
+            Function<Object[], Object> answer = answers.get(method.getName());
+            if (answer != null) {
+                return answer.apply(arguments);
+            }
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == arguments[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Fake" + type.getSimpleName();
+                default:
+                    break;
+            }
+            Class<?> returnType = method.getReturnType();
+            if (returnType.isInstance(proxy)) {
+                return proxy;
+            }
+            return defaultValue(returnType);
+        }));
+    }
+
+    /**
+     * SPI config scope answering from {@code options}, or with the default given by the caller.
+     */
+    public static Config.Scope scope(Map<String, String> options) {
+        Function<Object[], Object> lookup = args -> {
+            String value = options.get((String) args[0]);
+            return value != null ? value : (args.length > 1 ? args[1] : null);
+        };
+        return of(Config.Scope.class, Map.of(
+                "get", lookup,
+                "getInt", args -> {
+                    Object value = lookup.apply(args);
+                    return value instanceof String ? Integer.valueOf((String) value) : value;
+                },
+                "getLong", args -> {
+                    Object value = lookup.apply(args);
+                    return value instanceof String ? Long.valueOf((String) value) : value;
+                },
+                "getBoolean", args -> {
+                    Object value = lookup.apply(args);
+                    return value instanceof String ? Boolean.valueOf((String) value) : value;
+                }));
+    }
+
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class || type == short.class || type == byte.class || type == char.class) {
+            return type == char.class ? (Object) (char) 0 : (Object) 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == double.class || type == float.class) {
+            return type == float.class ? (Object) 0f : (Object) 0d;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,45 @@
+package br.coto.keycloak.otp.loadtest;
+
+import java.util.Random;
+
+/**
+ * Response delay of the stub server, parsed from a spec such as {@code fixed:50}, {@code uniform:20:200},
+ * {@code normal:100:25} (mean, standard deviation) or {@code lognormal:80:0.6} (median, sigma).
+ */
+@FunctionalInterface
+public interface LatencyDistribution {
+
+    LatencyDistribution NONE = random -> 0;
+
+    long sampleMillis(Random random);
+
+    static LatencyDistribution parse(String spec) {
+        if (spec == null || spec.isEmpty() || "none".equals(spec)) {
+            return NONE;
+        }
+        String[] parts = spec.split(":");
+        switch (parts[0]) {
+            case "fixed": {
+                long millis = Long.parseLong(parts[1]);
+                return random -> millis;
+            }
+            case "uniform": {
+                long min = Long.parseLong(parts[1]);
+                long max = Long.parseLong(parts[2]);
+                return random -> min + (long) (random.nextDouble() * (max - min));
+            }
+            case "normal": {
+                double mean = Double.parseDouble(parts[1]);
+                double deviation = Double.parseDouble(parts[2]);
+                return random -> Math.max(0, Math.round(mean + random.nextGaussian() * deviation));
+            }
+            case "lognormal": {
+                double mu = Math.log(Double.parseDouble(parts[1]));
+                double sigma = Double.parseDouble(parts[2]);
+                return random -> Math.round(Math.exp(mu + random.nextGaussian() * sigma));
+            }
+            default:
+                throw new IllegalArgumentException("Unknown latency distribution: " + spec);
+        }
+    }
+}
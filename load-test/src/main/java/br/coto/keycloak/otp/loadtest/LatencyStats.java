@@ -0,0 +1,45 @@
+package br.coto.keycloak.otp.loadtest;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Latency samples of one worker, merged into percentiles once the run is over.
+ */
+final class LatencyStats {
+
+    private long[] samples = new long[1024];
+    private int size;
+
+    void record(long nanos) {
+        if (size == samples.length) {
+            samples = Arrays.copyOf(samples, size * 2);
+        }
+        samples[size++] = nanos;
+    }
+
+    int size() {
+        return size;
+    }
+
+    static String summary(List<LatencyStats> workers) {
+        int total = workers.stream().mapToInt(LatencyStats::size).sum();
+        if (total == 0) {
+            return "no samples";
+        }
+        long[] all = new long[total];
+        int offset = 0;
+        for (LatencyStats worker : workers) {
+            System.arraycopy(worker.samples, 0, all, offset, worker.size);
+            offset += worker.size;
+        }
+        Arrays.sort(all);
+        return String.format("p50=%.2fms p90=%.2fms p99=%.2fms max=%.2fms",
+                millis(all, 0.50), millis(all, 0.90), millis(all, 0.99), all[all.length - 1] / 1e6);
+    }
+
+    private static double millis(long[] sorted, double percentile) {
+        int index = (int) Math.ceil(percentile * sorted.length) - 1;
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+}
@@ -0,0 +1,167 @@
+package br.coto.keycloak.otp.loadtest;
+
+import br.coto.keycloak.otp.SmsAuthenticatorFactory;
+import br.coto.keycloak.otp.helpers.SMSFields;
+import org.keycloak.authentication.Authenticator;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Drives the full authenticate/action cycle of the SMS authenticator with {@code --users} concurrent users for
+ * {@code --duration} seconds, against the embedded {@link StubSmsServer} (or {@code --broker-url}), and prints
+ * throughput and latency percentiles of each phase.
+ * <p>
+ * Options:
+ * <ul>
+ *     <li>{@code --users 16 --duration 30 --warmup 5 --think-time 0} (milliseconds between authenticate and action)</li>
+ *     <li>{@code --broker zenvia} or {@code twilio}</li>
+ *     <li>{@code --config key=value,...}: authenticator config, e.g. {@code async_dispatch=true,batch_max_size=20}</li>
+ *     <li>{@code --server key=value,...}: SPI options, e.g. {@code dispatchThreads=16,dispatchOverflow=sync}</li>
+ *     <li>{@code --stub-latency lognormal:80:0.5 --stub-error-rate 0.01 --stub-throttle-rate 0 --stub-max-rps 0}</li>
+ * </ul>
+ */
+public class LoadTest {
+
+    private final Authenticator authenticator;
+    private final FakeKeycloak keycloak;
+
+    private final AtomicLong cycles = new AtomicLong();
+    private final AtomicLong successes = new AtomicLong();
+    private final Map<String, AtomicLong> failures = new ConcurrentHashMap<>();
+
+    LoadTest(Authenticator authenticator, Map<String, String> authenticatorConfig) throws IOException {
+        this.authenticator = authenticator;
+        this.keycloak = new FakeKeycloak(authenticatorConfig);
+    }
+
+    public static void main(String[] arguments) throws Exception {
+        // The authenticator logs every SMS at info level
+        System.setProperty("org.slf4j.simpleLogger.defaultLogLevel", System.getProperty("org.slf4j.simpleLogger.defaultLogLevel", "warn"));
+        Args args = Args.parse(arguments);
+        int users = args.getInt("users", 16);
+        int durationSeconds = args.getInt("duration", 30);
+        int warmupSeconds = args.getInt("warmup", 5);
+        long thinkMillis = args.getInt("think-time", 0);
+
+        String broker = args.get("broker", "zenvia").toLowerCase();
+        String brokerUrl = args.get("broker-url", null);
+        StubSmsServer stub = brokerUrl == null ? StubSmsServer.fromArgs(args, "stub-") : null;
+        SmsAuthenticatorFactory factory = new SmsAuthenticatorFactory();
+        try {
+            if (stub != null) {
+                brokerUrl = "twilio".equals(broker) ? stub.getTwilioBaseUrl() : stub.getBaseUrl();
+            }
+            Map<String, String> authenticatorConfig = new HashMap<>();
+            authenticatorConfig.put(SMSFields.CODE_LENGTH.getValue(), "6");
+            authenticatorConfig.put(SMSFields.CODE_TTL.getValue(), "300");
+            authenticatorConfig.put(SMSFields.BROKER_LIST.getValue(), broker);
+            authenticatorConfig.put(SMSFields.BROKER_KEY.getValue(), "load-test");
+            authenticatorConfig.put(SMSFields.BROKER_SECRET.getValue(), "load-test");
+            authenticatorConfig.put(SMSFields.BROKER_SHORT_CODE.getValue(), "load-test");
+            authenticatorConfig.put(SMSFields.BROKER_URL.getValue(), brokerUrl);
+            // Every user gets a new number, but keep the limiter out of the way of a single-node run
+            authenticatorConfig.put(SMSFields.RATE_LIMIT_BURST.getValue(), "0");
+            authenticatorConfig.putAll(args.getPairs("config"));
+
+            factory.init(Fakes.scope(args.getPairs("server")));
+            LoadTest test = new LoadTest(factory.create(null), authenticatorConfig);
+            System.out.printf("Running %d users for %ds (+%ds warm-up) against %s%n", users, durationSeconds, warmupSeconds, brokerUrl);
+            test.run(users, warmupSeconds, durationSeconds, thinkMillis);
+        } finally {
+            factory.close();
+            if (stub != null) {
+                System.out.println("Stub: " + stub.stats());
+                stub.close();
+            }
+        }
+    }
+
+    void run(int users, int warmupSeconds, int durationSeconds, long thinkMillis) throws InterruptedException {
+        List<LatencyStats> authenticateStats = new ArrayList<>();
+        List<LatencyStats> actionStats = new ArrayList<>();
+        List<LatencyStats> cycleStats = new ArrayList<>();
+        ExecutorService workers = Executors.newFixedThreadPool(users);
+
+        long start = System.nanoTime();
+        long measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        long end = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+        for (int i = 0; i < users; i++) {
+            LatencyStats authenticateLatency = new LatencyStats();
+            LatencyStats actionLatency = new LatencyStats();
+            LatencyStats cycleLatency = new LatencyStats();
+            authenticateStats.add(authenticateLatency);
+            actionStats.add(actionLatency);
+            cycleStats.add(cycleLatency);
+            workers.execute(() -> {
+                while (System.nanoTime() < end) {
+                    cycle(System.nanoTime() >= measureFrom, thinkMillis, authenticateLatency, actionLatency, cycleLatency);
+                }
+            });
+        }
+        workers.shutdown();
+        workers.awaitTermination(warmupSeconds + durationSeconds + 60L, TimeUnit.SECONDS);
+
+        System.out.printf("Cycles: %d (%d successful), %.1f logins/s%n", cycles.get(), successes.get(), (double) successes.get() / durationSeconds);
+        failures.forEach((reason, count) -> System.out.printf("Failed: %s x %d%n", reason, count.get()));
+        System.out.println("authenticate: " + LatencyStats.summary(authenticateStats));
+        System.out.println("action:       " + LatencyStats.summary(actionStats));
+        System.out.println("cycle:        " + LatencyStats.summary(cycleStats));
+    }
+
+    private void cycle(boolean measured, long thinkMillis, LatencyStats authenticateLatency, LatencyStats actionLatency, LatencyStats cycleLatency) {
+        String phone = "+5511" + (900000000L + ThreadLocalRandom.current().nextLong(100000000L));
+        FakeLogin login = keycloak.newLogin(UUID.randomUUID().toString(), phone);
+
+        long started = System.nanoTime();
+        authenticator.authenticate(login.getContext());
+        long authenticated = System.nanoTime();
+        if (!"challenge".equals(login.getOutcome())) {
+            fail(measured, "authenticate " + login.getOutcome());
+            return;
+        }
+
+        if (thinkMillis > 0) {
+            try {
+                Thread.sleep(thinkMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+
+        login.enterCode(login.getSentCode());
+        long acting = System.nanoTime();
+        authenticator.action(login.getContext());
+        long finished = System.nanoTime();
+        if (!"success".equals(login.getOutcome())) {
+            fail(measured, "action " + login.getOutcome());
+            return;
+        }
+
+        if (measured) {
+            cycles.incrementAndGet();
+            successes.incrementAndGet();
+            authenticateLatency.record(authenticated - started);
+            actionLatency.record(finished - acting);
+            cycleLatency.record(finished - started - (acting - authenticated));
+        }
+    }
+
+    private void fail(boolean measured, String reason) {
+        if (measured) {
+            cycles.incrementAndGet();
+            failures.computeIfAbsent(reason, key -> new AtomicLong()).incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package br.coto.keycloak.otp.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stand-in for the Zenvia REST API ({@code /services/send-sms} and {@code /services/send-sms-multiple}) and the
+ * Twilio Messages API ({@code /2010-04-01/Accounts/{AccountSid}/Messages.json}).
+ * <p>
+ * Each request waits for a delay drawn from the latency distribution, then is throttled (HTTP 429) when above
+ * {@code maxRps} or with {@code throttleRate} probability, fails (HTTP 500, or status "10" per message of a batch)
+ * with {@code errorRate} probability, and succeeds otherwise.
+ * <p>
+ * Run standalone to point a real Keycloak at it through the <em>Broker URL</em> option:
+ * {@code java -cp ... br.coto.keycloak.otp.loadtest.StubSmsServer --port 8089 --latency lognormal:80:0.5}
+ */
+public class StubSmsServer implements AutoCloseable {
+
+    private static final String OK_RESULT = "{\"statusCode\":\"00\",\"statusDescription\":\"Ok\",\"detailCode\":\"000\",\"detailDescription\":\"Message Sent\"}";
+    private static final String TWILIO_PATH = "/2010-04-01";
+    private static final String ERROR_RESULT = "{\"statusCode\":\"10\",\"statusDescription\":\"Error\",\"detailCode\":\"999\",\"detailDescription\":\"Stub failure\"}";
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final LatencyDistribution latency;
+    private final double errorRate;
+    private final double throttleRate;
+    private final int maxRps;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private long window;
+    private int windowCount;
+
+    static {
+        // Without it, Nagle's algorithm and delayed ACKs add about 40ms to every response
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+    }
+
+    public StubSmsServer(String host, int port, LatencyDistribution latency, double errorRate, double throttleRate, int maxRps, int threads) throws IOException {
+        this.latency = latency;
+        this.errorRate = errorRate;
+        this.throttleRate = throttleRate;
+        this.maxRps = maxRps;
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "stub-sms");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.server = HttpServer.create(new InetSocketAddress(host, port), 1024);
+        this.server.setExecutor(executor);
+        this.server.createContext("/services/send-sms", exchange -> handle(exchange, false));
+        this.server.createContext("/services/send-sms-multiple", exchange -> handle(exchange, true));
+        this.server.createContext(TWILIO_PATH + "/Accounts/", this::handleTwilio);
+        this.server.start();
+    }
+
+    /**
+     * Builds the server from {@code --host}, {@code --port}, {@code --latency}, {@code --error-rate}, {@code --throttle-rate},
+     * {@code --max-rps} and {@code --threads}, each optionally prefixed (e.g. {@code stub-}).
+     */
+    static StubSmsServer fromArgs(Args args, String prefix) throws IOException {
+        return new StubSmsServer(
+                args.get(prefix + "host", "127.0.0.1"),
+                args.getInt(prefix + "port", 0),
+                LatencyDistribution.parse(args.get(prefix + "latency", "none")),
+                args.getDouble(prefix + "error-rate", 0),
+                args.getDouble(prefix + "throttle-rate", 0),
+                args.getInt(prefix + "max-rps", 0),
+                args.getInt(prefix + "threads", 200));
+    }
+
+    public String getBaseUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + "/services";
+    }
+
+    public String getTwilioBaseUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + TWILIO_PATH;
+    }
+
+    public String stats() {
+        return String.format("requests=%d messages=%d errors=%d throttled=%d", requests.get(), messages.get(), errors.get(), throttled.get());
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange, boolean multiple) throws IOException {
+        try (exchange) {
+            requests.incrementAndGet();
+            byte[] body = readAll(exchange.getRequestBody());
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                respond(exchange, 405, "{}");
+                return;
+            }
+
+            long delay = latency.sampleMillis(ThreadLocalRandom.current());
+            if (delay > 0) {
+                Thread.sleep(delay);
+            }
+
+            if (!acquireRate() || ThreadLocalRandom.current().nextDouble() < throttleRate) {
+                throttled.incrementAndGet();
+                exchange.getResponseHeaders().add("Retry-After", "1");
+                respond(exchange, 429, "{\"exception\":{\"message\":\"Too many requests\"}}");
+                return;
+            }
+
+            if (multiple) {
+                JsonNode list = JsonSerialization.mapper.readTree(body).path("sendSmsMultiRequest").path("sendSmsRequestList");
+                StringBuilder response = new StringBuilder("{\"sendSmsMultiResponse\":{\"sendSmsResponseList\":[");
+                for (int i = 0; i < list.size(); i++) {
+                    messages.incrementAndGet();
+                    boolean failed = ThreadLocalRandom.current().nextDouble() < errorRate;
+                    if (failed) {
+                        errors.incrementAndGet();
+                    }
+                    response.append(i > 0 ? "," : "").append(failed ? ERROR_RESULT : OK_RESULT);
+                }
+                respond(exchange, 200, response.append("]}}").toString());
+            } else {
+                messages.incrementAndGet();
+                if (ThreadLocalRandom.current().nextDouble() < errorRate) {
+                    errors.incrementAndGet();
+                    respond(exchange, 500, "{\"exception\":{\"message\":\"Stub failure\"}}");
+                } else {
+                    respond(exchange, 200, "{\"sendSmsResponse\":" + OK_RESULT + "}");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void handleTwilio(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            requests.incrementAndGet();
+            String form = new String(readAll(exchange.getRequestBody()), StandardCharsets.US_ASCII);
+            if ("GET".equals(exchange.getRequestMethod()) && exchange.getRequestURI().getPath().matches(".*/Accounts/[^/]+\\.json")) {
+                // Account fetch, used by the broker warm-up to check the credentials
+                respond(exchange, 200, "{\"status\":\"active\",\"type\":\"Full\"}");
+                return;
+            }
+            if (!"POST".equals(exchange.getRequestMethod()) || !exchange.getRequestURI().getPath().endsWith("/Messages.json")) {
+                respond(exchange, 404, "{\"code\":20404,\"message\":\"The requested resource was not found\",\"status\":404}");
+                return;
+            }
+            if (!form.contains("To=") || !form.contains("Body=") || !(form.contains("From=") || form.contains("MessagingServiceSid="))) {
+                respond(exchange, 400, "{\"code\":21604,\"message\":\"A 'To', 'Body' and 'From' or 'MessagingServiceSid' are required\",\"status\":400}");
+                return;
+            }
+
+            long delay = latency.sampleMillis(ThreadLocalRandom.current());
+            if (delay > 0) {
+                Thread.sleep(delay);
+            }
+
+            if (!acquireRate() || ThreadLocalRandom.current().nextDouble() < throttleRate) {
+                throttled.incrementAndGet();
+                respond(exchange, 429, "{\"code\":20429,\"message\":\"Too Many Requests\",\"status\":429}");
+                return;
+            }
+
+            messages.incrementAndGet();
+            if (ThreadLocalRandom.current().nextDouble() < errorRate) {
+                errors.incrementAndGet();
+                respond(exchange, 500, "{\"code\":20500,\"message\":\"Stub failure\",\"status\":500}");
+            } else {
+                respond(exchange, 201, "{\"sid\":\"SM" + Long.toHexString(messages.get()) + "\",\"status\":\"queued\"}");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private synchronized boolean acquireRate() {
+        if (maxRps <= 0) {
+            return true;
+        }
+        long second = System.currentTimeMillis() / 1000;
+        if (second != window) {
+            window = second;
+            windowCount = 0;
+        }
+        return ++windowCount <= maxRps;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        try (in) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        StubSmsServer server = fromArgs(Args.parse(args), "");
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            System.out.println("Stub SMS server stopped: " + server.stats());
+            server.close();
+        }));
+        System.out.println("Stub SMS server listening on " + server.getBaseUrl());
+        Thread.currentThread().join();
+    }
+}
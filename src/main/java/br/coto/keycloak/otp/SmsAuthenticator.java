@@ -1,23 +1,38 @@
 package br.coto.keycloak.otp;
 
-import br.coto.keycloak.otp.brokers.BrokerConfig;
-import br.coto.keycloak.otp.brokers.BrokerServiceFactory;
+import br.coto.keycloak.otp.brokers.BrokerRegistry;
+import br.coto.keycloak.otp.brokers.DeliveryTracking;
+import br.coto.keycloak.otp.brokers.IBrokerService;
+import br.coto.keycloak.otp.brokers.resilience.BrokerUnavailableException;
+import br.coto.keycloak.otp.delivery.DeliveryTracker;
+import br.coto.keycloak.otp.dispatch.SmsDispatcher;
+import br.coto.keycloak.otp.helpers.OtpCodes;
+import br.coto.keycloak.otp.helpers.PhoneNumbers;
 import br.coto.keycloak.otp.helpers.SMSFields;
+import br.coto.keycloak.otp.metrics.SmsMetrics;
+import br.coto.keycloak.otp.normalization.PhoneAttributes;
+import br.coto.keycloak.otp.outbox.SmsOutbox;
+import br.coto.keycloak.otp.ratelimit.VerificationGuard;
+import br.coto.keycloak.otp.settings.SmsSettings;
+import br.coto.keycloak.otp.settings.SmsSettingsCache;
+import br.coto.keycloak.otp.settings.SmsTemplateCache;
+import br.coto.keycloak.otp.tracing.SmsSpan;
+import br.coto.keycloak.otp.tracing.SmsTracing;
 import jakarta.ws.rs.core.Response;
 import lombok.extern.slf4j.Slf4j;
 import org.keycloak.authentication.AuthenticationFlowContext;
 import org.keycloak.authentication.AuthenticationFlowError;
 import org.keycloak.authentication.Authenticator;
 import org.keycloak.common.util.SecretGenerator;
+import org.keycloak.forms.login.LoginFormsProvider;
 import org.keycloak.models.AuthenticationExecutionModel;
-import org.keycloak.models.AuthenticatorConfigModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.RealmModel;
 import org.keycloak.models.UserModel;
 import org.keycloak.sessions.AuthenticationSessionModel;
-import org.keycloak.theme.Theme;
 
 import java.util.Locale;
+import java.util.concurrent.RejectedExecutionException;
 
 /**
  * An authenticator that sends a one-time password (OTP) via SMS to the user's registered mobile number.
@@ -37,31 +52,50 @@ import java.util.Locale;
 @Slf4j
 public class SmsAuthenticator implements Authenticator {
 
-    private static final String PHONE_NUMBER = "mobile_number";
     private static final String TPL_CODE = "login-otp-sms.ftl";
 
+    private final BrokerRegistry brokerRegistry;
+    private final SmsDispatcher dispatcher;
+    private final SmsOutbox outbox;
+    private final DeliveryTracker deliveryTracker;
+    private final SmsSettingsCache settingsCache;
+    private final SmsTemplateCache templateCache;
+
+    public SmsAuthenticator(BrokerRegistry brokerRegistry, SmsDispatcher dispatcher, SmsOutbox outbox,
+                            DeliveryTracker deliveryTracker, SmsSettingsCache settingsCache, SmsTemplateCache templateCache) {
+        this.brokerRegistry = brokerRegistry;
+        this.dispatcher = dispatcher;
+        this.outbox = outbox;
+        this.deliveryTracker = deliveryTracker;
+        this.settingsCache = settingsCache;
+        this.templateCache = templateCache;
+    }
+
     @Override
     public void authenticate(AuthenticationFlowContext context) {
         log.debug("[COTO] SmsAuthenticator authenticate");
-        AuthenticatorConfigModel config = context.getAuthenticatorConfig();
-        KeycloakSession session = context.getSession();
-
-        int length = Integer.parseInt(config.getConfig().get(SMSFields.CODE_LENGTH.getValue()));
-        int ttl = Integer.parseInt(config.getConfig().get(SMSFields.CODE_TTL.getValue()));
-        String phoneAttributeName = config.getConfig().get( SMSFields.PHONE_ATTRIBUTE.getValue() );
-        String broker = config.getConfig().get( SMSFields.BROKER_LIST.getValue() );
+        SmsTracing.inSpan(SmsTracing.start(SmsAuthenticator.class, "authenticate").realm(context.getRealm().getName()),
+                () -> challenge(context));
+    }
 
-        if (Boolean.parseBoolean(config.getConfig().getOrDefault(SMSFields.SIMULATION_MODE.getValue(), "false"))) {
-            broker = "simulate";
+    /**
+     * Sends a code to the phone number of the user, or shows the form again when the code just sent can be reused.
+     */
+    private void challenge(AuthenticationFlowContext context) {
+        SmsSettings settings = resolveSettings(context);
+        if (settings == null) {
+            return;
         }
 
+        String phoneAttributeName = settings.getPhoneAttribute();
+
         log.debug("[COTO] Phone attribute name: {}", phoneAttributeName);
 
         UserModel user = context.getUser();
-        String mobileNumber = user.getFirstAttribute(phoneAttributeName != null ? phoneAttributeName : PHONE_NUMBER);
+        String mobileNumber = user.getFirstAttribute(phoneAttributeName);
 
         // Mask phone number for logging (security improvement)
-        log.debug("[COTO] User mobile number configured: {}", mobileNumber != null ? maskPhoneNumber(mobileNumber) : "none");
+        log.debug("[COTO] User mobile number configured: {}", PhoneNumbers.masked(mobileNumber));
 
         if (mobileNumber == null || mobileNumber.trim().isEmpty()) {
             log.warn("[COTO] User has no phone number configured: {}", user.getUsername());
@@ -71,8 +105,10 @@ public class SmsAuthenticator implements Authenticator {
             return;
         }
 
-        // Validate phone number format (basic validation)
-        if (!isValidPhoneNumber(mobileNumber)) {
+        // Precomputed by the phone normalization job when the attribute has not changed since it ran
+        String normalizedNumber = SmsTracing.inSpan(SmsAuthenticator.class, "validatePhone",
+                () -> PhoneAttributes.normalized(user, mobileNumber));
+        if (normalizedNumber == null) {
             log.warn("[COTO] Invalid phone number format for user: {}", user.getUsername());
             context.failureChallenge(AuthenticationFlowError.CLIENT_CREDENTIALS_SETUP_REQUIRED,
                     context.form().setError("smsAuthMobileNumberInvalid")
@@ -80,34 +116,111 @@ public class SmsAuthenticator implements Authenticator {
             return;
         }
 
-        String code = SecretGenerator.getInstance().randomString(length, SecretGenerator.DIGITS);
         AuthenticationSessionModel authSession = context.getAuthenticationSession();
-        authSession.setAuthNote(SMSFields.CODE.getValue(), code);
-        authSession.setAuthNote(SMSFields.CODE_TTL.getValue(), Long.toString(System.currentTimeMillis() + (ttl * 1000L)));
+        if (isReusable(authSession, normalizedNumber, settings.getResendIntervalSeconds())) {
+            // Reload or double submit: the code just sent is still valid, show the form again without a new SMS
+            log.debug("[COTO] Reusing the SMS OTP already sent to user: {}", user.getUsername());
+            context.challenge(renderCodeForm(codeForm(context)));
+            return;
+        }
 
-        try {
-            Theme theme = session.theme().getTheme(Theme.Type.LOGIN);
-            Locale locale = session.getContext().resolveLocale(user);
+        sendCode(context, settings, normalizedNumber);
+    }
 
-            String smsAuthText = theme.getMessages(locale).getProperty("smsAuthText");
-            String realmName = context.getRealm().getDisplayName() != null ? context.getRealm().getDisplayName() : context.getRealm().getName();
-            String smsText = String.format(smsAuthText, code, realmName);
+    /**
+     * Generates a new code, sends it to {@code mobileNumber} and renders the code form.
+     */
+    private void sendCode(AuthenticationFlowContext context, SmsSettings settings, String mobileNumber) {
+        KeycloakSession session = context.getSession();
+        UserModel user = context.getUser();
+
+        int length = settings.getCodeLength();
+        int ttl = settings.getCodeTtlSeconds();
+        VerificationGuard.Attempts attempts = settings.getVerificationGuard().load(session, context.getRealm().getId(), user.getId());
+        if (attempts.isLockedOut()) {
+            // No new codes to guess until the lockout ends
+            log.warn("[COTO] SMS OTP requested by locked out user: {}", user.getUsername());
+            context.failureChallenge(AuthenticationFlowError.INVALID_CREDENTIALS,
+                    context.form().setError("smsAuthLockedOut", attempts.retryAfter())
+                            .createErrorPage(Response.Status.TOO_MANY_REQUESTS));
+            return;
+        }
+        long retryAfter = settings.getRateLimiter().tryAcquire(session, context.getRealm().getId(), user.getId(), mobileNumber);
+        if (retryAfter > 0) {
+            log.warn("[COTO] Too many SMS OTP requests for user: {}", user.getUsername());
+            context.failureChallenge(AuthenticationFlowError.GENERIC_AUTHENTICATION_ERROR,
+                    context.form().setError("smsAuthTooManyRequests", retryAfter)
+                            .createErrorPage(Response.Status.TOO_MANY_REQUESTS));
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        AuthenticationSessionModel authSession = context.getAuthenticationSession();
+        String code = SmsTracing.inSpan(SmsAuthenticator.class, "generateCode", () -> {
+            String generated = SecretGenerator.getInstance().randomString(length, SecretGenerator.DIGITS);
+            authSession.setAuthNote(SMSFields.CODE.getValue(), generated);
+            authSession.setAuthNote(SMSFields.CODE_TTL.getValue(), Long.toString(now + (ttl * 1000L)));
+            authSession.setAuthNote(SMSFields.CODE_SENT_AT.getValue(), Long.toString(now));
+            authSession.setAuthNote(SMSFields.CODE_PHONE.getValue(), mobileNumber);
+            authSession.removeAuthNote(SMSFields.CODE_ATTEMPTS.getValue());
+            return generated;
+        });
 
-            BrokerConfig brokerConfig = BrokerConfig.builder()
-                                            .shortCode(config.getConfig().get(SMSFields.BROKER_SHORT_CODE.getValue()))
-                                            .key(config.getConfig().get(SMSFields.BROKER_KEY.getValue()))
-                                            .secret(config.getConfig().get(SMSFields.BROKER_SECRET.getValue()))
-                                            .build();
+        try {
+            String smsText = SmsTracing.inSpan(SmsAuthenticator.class, "renderMessage", () -> {
+                Locale locale = session.getContext().resolveLocale(user);
+                String realmName = context.getRealm().getDisplayName() != null ? context.getRealm().getDisplayName() : context.getRealm().getName();
+                return templateCache.get(session, context.getRealm(), authSession.getClient(), locale).render(code, realmName);
+            });
 
-            BrokerServiceFactory.get(broker, brokerConfig).send(mobileNumber, smsText);
+            String configId = context.getAuthenticatorConfig().getId();
+            IBrokerService brokerService = brokerRegistry.get(context.getRealm().getId(), context.getRealm().getName(), configId, settings.getPlan());
+
+            DeliveryTracking tracking = null;
+            if (settings.isDeliveryReceipts()) {
+                tracking = deliveryTracker.track(session, context.getRealm(), configId, mobileNumber, smsText, now + (ttl * 1000L));
+                authSession.setAuthNote(SMSFields.CODE_MESSAGE_ID.getValue(), tracking.getMessageId());
+            } else {
+                authSession.removeAuthNote(SMSFields.CODE_MESSAGE_ID.getValue());
+            }
 
-            log.info("[COTO] SMS OTP sent successfully to user: {} (phone: {})", user.getUsername(), maskPhoneNumber(mobileNumber));
+            if (settings.isOutbox()) {
+                // Stored with the login transaction; failed or interrupted sends are retried by the outbox drain
+                String outboxId = outbox.enqueue(session, context.getRealm(), configId, mobileNumber, smsText, tracking, now + (ttl * 1000L));
+                try {
+                    dispatcher.submit(context.getRealm().getId(), context.getRealm().getName(), brokerService, mobileNumber, smsText, tracking).whenComplete((result, error) -> {
+                        if (error == null) {
+                            outbox.markSent(outboxId);
+                        } else {
+                            outbox.markFailed(outboxId, error);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    outbox.markFailed(outboxId, e);
+                }
+                log.info("[COTO] SMS OTP stored in outbox for user: {} (phone: {})", user.getUsername(), PhoneNumbers.masked(mobileNumber));
+            } else if (settings.isAsyncDispatch()) {
+                // The challenge is rendered right away; a failed send is reported on the next action call
+                dispatcher.dispatch(dispatchKey(authSession), context.getRealm().getId(), context.getRealm().getName(),
+                        brokerService, mobileNumber, smsText, tracking, ttl * 1000L);
+                log.info("[COTO] SMS OTP queued for user: {} (phone: {})", user.getUsername(), PhoneNumbers.masked(mobileNumber));
+            } else {
+                brokerService.send(mobileNumber, smsText, tracking);
+                log.info("[COTO] SMS OTP sent successfully to user: {} (phone: {})", user.getUsername(), PhoneNumbers.masked(mobileNumber));
+            }
+            SmsMetrics.codeIssued(context.getRealm().getName(), settings.getBrokerName());
 
-            context.challenge(context.form()
-                    .setAttribute("realm", context.getRealm())
-                    .createForm(TPL_CODE)
-            );
+            context.challenge(renderCodeForm(codeForm(context)));
+        } catch (RejectedExecutionException | BrokerUnavailableException e) {
+            clearCode(authSession);
+            SmsTracing.error(e);
+            log.warn("[COTO] SMS service unavailable, rejecting OTP for user: {} - {}", user.getUsername(), e.getMessage());
+            context.failureChallenge(AuthenticationFlowError.INTERNAL_ERROR,
+                    context.form().setError("smsAuthServiceBusy")
+                            .createErrorPage(Response.Status.SERVICE_UNAVAILABLE));
         } catch (Exception e) {
+            clearCode(authSession);
+            SmsTracing.error(e);
             log.error("[COTO] Failed to send SMS OTP to user: {} - Error: {}", user.getUsername(), e.getMessage());
             context.failureChallenge(AuthenticationFlowError.INTERNAL_ERROR,
                     context.form().setError("smsAuthSmsNotSent", e.getMessage())
@@ -118,26 +231,59 @@ public class SmsAuthenticator implements Authenticator {
     @Override
     public void action(AuthenticationFlowContext context) {
         log.debug("[COTO] SmsAuthenticator action");
+        SmsTracing.inSpan(SmsTracing.start(SmsAuthenticator.class, "action").realm(context.getRealm().getName()),
+                () -> verify(context));
+    }
+
+    /**
+     * Checks the code entered by the user, or sends a new one when the user asked for it.
+     */
+    private void verify(AuthenticationFlowContext context) {
+        AuthenticationSessionModel authSession = context.getAuthenticationSession();
+        SmsSettings settings = resolveSettings(context);
+        if (settings == null) {
+            return;
+        }
+
+        if (context.getHttpRequest().getDecodedFormParameters().containsKey(SMSFields.RESEND.getValue())) {
+            resendCode(context, settings);
+            return;
+        }
+
+        Throwable sendFailure = dispatcher.takeFailure(dispatchKey(authSession));
+        if (sendFailure != null) {
+            log.error("[COTO] Asynchronous SMS OTP send failed for user: {} - Error: {}", context.getUser().getUsername(), sendFailure.getMessage());
+            clearCode(authSession);
+            context.failureChallenge(AuthenticationFlowError.INTERNAL_ERROR,
+                    context.form().setError("smsAuthSmsNotSent", sendFailure.getMessage())
+                            .createErrorPage(Response.Status.INTERNAL_SERVER_ERROR));
+            return;
+        }
+
         String enteredCode = context.getHttpRequest().getDecodedFormParameters().getFirst(SMSFields.CODE.getValue());
 
         // Validate entered code format
-        if (enteredCode == null || enteredCode.trim().isEmpty() || !enteredCode.matches("\\d+")) {
+        if (!OtpCodes.isDigits(enteredCode)) {
             log.warn("[COTO] Invalid code format entered by user: {}", context.getUser().getUsername());
+            SmsMetrics.invalidAttempt(context.getRealm().getName(), settings.getBrokerName());
             AuthenticationExecutionModel execution = context.getExecution();
             if (execution.isRequired()) {
                 context.failureChallenge(AuthenticationFlowError.INVALID_CREDENTIALS,
-                        context.form().setAttribute("realm", context.getRealm())
-                                .setError("smsAuthCodeInvalid").createForm(TPL_CODE));
+                        renderCodeForm(codeForm(context).setError("smsAuthCodeInvalid")));
             } else if (execution.isConditional() || execution.isAlternative()) {
                 context.attempted();
             }
             return;
         }
 
-        AuthenticationSessionModel authSession = context.getAuthenticationSession();
         String code = authSession.getAuthNote(SMSFields.CODE.getValue());
         String ttl = authSession.getAuthNote(SMSFields.CODE_TTL.getValue());
 
+        if ((code == null || ttl == null) && authSession.getAuthNote(SMSFields.CODE_PHONE.getValue()) != null) {
+            // Dropped after too many wrong entries, the user has to request a new code
+            context.challenge(renderCodeForm(codeForm(context).setError("smsAuthCodeInvalidated")));
+            return;
+        }
         if (code == null || ttl == null) {
             log.error("[COTO] Missing OTP code or TTL in session for user: {}", context.getUser().getUsername());
             context.failureChallenge(AuthenticationFlowError.INTERNAL_ERROR,
@@ -145,32 +291,194 @@ public class SmsAuthenticator implements Authenticator {
             return;
         }
 
-        boolean isValid = enteredCode.equals(code);
+        VerificationGuard guard = settings.getVerificationGuard();
+        VerificationGuard.Attempts attempts = guard.load(context.getSession(), context.getRealm().getId(), context.getUser().getId());
+        if (attempts.retryAfter() > 0) {
+            refuseAttempt(context, settings, attempts.isLockedOut(), attempts.retryAfter());
+            return;
+        }
+        // Reserved before the code is checked, so parallel guesses are counted one by one
+        VerificationGuard.Attempt attempt = guard.reserve(context.getSession(), attempts);
+        if (!attempt.isGranted()) {
+            refuseAttempt(context, settings, attempt.isLockedOut(), attempt.retryAfter());
+            return;
+        }
+        String attemptsNote = authSession.getAuthNote(SMSFields.CODE_ATTEMPTS.getValue());
+        int attemptOnCode = guard.reserveOnCode(context.getSession(), codeKey(context),
+                attemptsNote != null ? Integer.parseInt(attemptsNote) : 0);
+        if (guard.isOverLimit(attemptOnCode)) {
+            attempt.release(context.getSession());
+            log.warn("[COTO] Too many wrong codes, dropping the SMS OTP of user: {}", context.getUser().getUsername());
+            SmsMetrics.verificationBlocked(context.getRealm().getName(), settings.getBrokerName(), "invalidated");
+            dropCode(authSession);
+            context.challenge(renderCodeForm(codeForm(context).setError("smsAuthCodeInvalidated")));
+            return;
+        }
+
+        boolean isValid;
+        boolean expired;
+        try (SmsSpan span = SmsTracing.start(SmsAuthenticator.class, "verifyCode")) {
+            isValid = OtpCodes.matches(code, enteredCode);
+            expired = Long.parseLong(ttl) < System.currentTimeMillis();
+            span.outcome(!isValid ? "invalid" : expired ? "expired" : "valid");
+        }
         if (isValid) {
-            if (Long.parseLong(ttl) < System.currentTimeMillis()) {
+            if (expired) {
                 log.warn("[COTO] Expired OTP code used by user: {}", context.getUser().getUsername());
+                attempt.release(context.getSession());
+                SmsMetrics.codeExpired(context.getRealm().getName(), settings.getBrokerName());
                 context.failureChallenge(AuthenticationFlowError.EXPIRED_CODE,
                         context.form().setError("smsAuthCodeExpired").createErrorPage(Response.Status.BAD_REQUEST));
             } else {
                 log.info("[COTO] SMS OTP authentication successful for user: {}", context.getUser().getUsername());
+                String sentAt = authSession.getAuthNote(SMSFields.CODE_SENT_AT.getValue());
+                SmsMetrics.codeVerified(context.getRealm().getName(), settings.getBrokerName(),
+                        sentAt != null ? System.currentTimeMillis() - Long.parseLong(sentAt) : 0L);
                 // Clean up the OTP from session for security
-                authSession.removeAuthNote(SMSFields.CODE.getValue());
-                authSession.removeAuthNote(SMSFields.CODE_TTL.getValue());
+                clearCode(authSession);
+                guard.succeeded(context.getSession(), attempt);
+                dispatcher.forget(dispatchKey(authSession));
                 context.success();
             }
         } else {
             log.warn("[COTO] Invalid OTP code entered by user: {}", context.getUser().getUsername());
+            SmsMetrics.invalidAttempt(context.getRealm().getName(), settings.getBrokerName());
+            String error = "smsAuthCodeInvalid";
+            VerificationGuard.Attempts failures = guard.failed(context.getSession(), attempt);
+            if (failures.isLockedOut()) {
+                log.warn("[COTO] User {} locked out of SMS OTP after {} wrong codes", context.getUser().getUsername(), failures.getFailures());
+            }
+            if (guard.isExhausted(attemptOnCode)) {
+                log.warn("[COTO] Too many wrong codes, dropping the SMS OTP of user: {}", context.getUser().getUsername());
+                SmsMetrics.verificationBlocked(context.getRealm().getName(), settings.getBrokerName(), "invalidated");
+                dropCode(authSession);
+                error = "smsAuthCodeInvalidated";
+            } else {
+                authSession.setAuthNote(SMSFields.CODE_ATTEMPTS.getValue(), Integer.toString(attemptOnCode));
+            }
             AuthenticationExecutionModel execution = context.getExecution();
             if (execution.isRequired()) {
                 context.failureChallenge(AuthenticationFlowError.INVALID_CREDENTIALS,
-                        context.form().setAttribute("realm", context.getRealm())
-                                .setError("smsAuthCodeInvalid").createForm(TPL_CODE));
+                        renderCodeForm(codeForm(context).setError(error)));
             } else if (execution.isConditional() || execution.isAlternative()) {
                 context.attempted();
             }
         }
     }
 
+    /**
+     * Refuses to check the code of a locked out user, or of one who has to wait after a wrong code.
+     */
+    private void refuseAttempt(AuthenticationFlowContext context, SmsSettings settings, boolean lockedOut, long retryAfter) {
+        if (lockedOut) {
+            log.warn("[COTO] SMS OTP attempt by locked out user: {}", context.getUser().getUsername());
+            SmsMetrics.verificationBlocked(context.getRealm().getName(), settings.getBrokerName(), "locked_out");
+            dropCode(context.getAuthenticationSession());
+            context.failureChallenge(AuthenticationFlowError.INVALID_CREDENTIALS,
+                    context.form().setError("smsAuthLockedOut", retryAfter)
+                            .createErrorPage(Response.Status.TOO_MANY_REQUESTS));
+        } else {
+            // The code is not checked, so waiting is the only way to get another guess
+            log.debug("[COTO] SMS OTP attempt too soon after a wrong code by user: {}", context.getUser().getUsername());
+            SmsMetrics.verificationBlocked(context.getRealm().getName(), settings.getBrokerName(), "delayed");
+            context.challenge(renderCodeForm(codeForm(context).setError("smsAuthTooManyAttempts", retryAfter)));
+        }
+    }
+
+    /**
+     * Sends a new code on explicit user request, once the resend interval since the last SMS has elapsed.
+     */
+    private void resendCode(AuthenticationFlowContext context, SmsSettings settings) {
+        AuthenticationSessionModel authSession = context.getAuthenticationSession();
+        String mobileNumber = authSession.getAuthNote(SMSFields.CODE_PHONE.getValue());
+        String sentAt = authSession.getAuthNote(SMSFields.CODE_SENT_AT.getValue());
+        if (mobileNumber == null || sentAt == null) {
+            challenge(context);
+            return;
+        }
+
+        long waitMillis = Long.parseLong(sentAt) + (settings.getResendIntervalSeconds() * 1000L) - System.currentTimeMillis();
+        if (waitMillis > 0) {
+            log.debug("[COTO] Resend requested too soon by user: {}", context.getUser().getUsername());
+            context.challenge(renderCodeForm(codeForm(context)
+                    .setError("smsAuthResendTooSoon", (waitMillis + 999) / 1000)
+            ));
+            return;
+        }
+
+        log.info("[COTO] Resending SMS OTP to user: {}", context.getUser().getUsername());
+        dispatcher.forget(dispatchKey(authSession));
+        sendCode(context, settings, mobileNumber);
+    }
+
+    /**
+     * Settings of the authenticator config, or {@code null} after rendering an error page when the config is invalid.
+     */
+    private SmsSettings resolveSettings(AuthenticationFlowContext context) {
+        try (SmsSpan span = SmsTracing.start(SmsAuthenticator.class, "resolveSettings")) {
+            SmsSettings settings = settingsCache.get(context.getRealm().getId(), context.getAuthenticatorConfig());
+            span.broker(settings.getBrokerName());
+            return settings;
+        } catch (IllegalArgumentException e) {
+            log.debug("[COTO] SMS authenticator config rejected: {}", e.getMessage());
+            context.failureChallenge(AuthenticationFlowError.INTERNAL_ERROR,
+                    context.form().setError("smsAuthNotConfigured")
+                            .createErrorPage(Response.Status.INTERNAL_SERVER_ERROR));
+            return null;
+        }
+    }
+
+    private void clearCode(AuthenticationSessionModel authSession) {
+        dropCode(authSession);
+        authSession.removeAuthNote(SMSFields.CODE_SENT_AT.getValue());
+        authSession.removeAuthNote(SMSFields.CODE_PHONE.getValue());
+        authSession.removeAuthNote(SMSFields.CODE_MESSAGE_ID.getValue());
+    }
+
+    /**
+     * Makes the code unusable but keeps the phone number and send time, so a new code can be requested once the
+     * resend interval has elapsed
+     */
+    private void dropCode(AuthenticationSessionModel authSession) {
+        authSession.removeAuthNote(SMSFields.CODE.getValue());
+        authSession.removeAuthNote(SMSFields.CODE_TTL.getValue());
+        authSession.removeAuthNote(SMSFields.CODE_ATTEMPTS.getValue());
+    }
+
+    /**
+     * The code form, with the delivery status URL the page polls when the code is tracked
+     */
+    private LoginFormsProvider codeForm(AuthenticationFlowContext context) {
+        LoginFormsProvider form = context.form().setAttribute("realm", context.getRealm());
+        String messageId = context.getAuthenticationSession().getAuthNote(SMSFields.CODE_MESSAGE_ID.getValue());
+        if (messageId != null) {
+            form.setAttribute("deliveryStatusUrl", DeliveryTracker.statusUrl(context.getSession(), context.getRealm(), messageId));
+        }
+        return form;
+    }
+
+    /**
+     * Renders the code form page
+     */
+    private Response renderCodeForm(LoginFormsProvider form) {
+        return SmsTracing.inSpan(SmsAuthenticator.class, "renderForm", () -> form.createForm(TPL_CODE));
+    }
+
+    /**
+     * Whether the code already in the session was sent to the same number, is still valid and was sent
+     * less than {@code resendInterval} seconds ago.
+     */
+    private boolean isReusable(AuthenticationSessionModel authSession, String mobileNumber, int resendInterval) {
+        String code = authSession.getAuthNote(SMSFields.CODE.getValue());
+        String ttl = authSession.getAuthNote(SMSFields.CODE_TTL.getValue());
+        String sentAt = authSession.getAuthNote(SMSFields.CODE_SENT_AT.getValue());
+        if (code == null || ttl == null || sentAt == null || !mobileNumber.equals(authSession.getAuthNote(SMSFields.CODE_PHONE.getValue()))) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        return Long.parseLong(ttl) > now && Long.parseLong(sentAt) + (resendInterval * 1000L) > now;
+    }
+
     @Override
     public boolean requiresUser() {
         log.debug("[COTO] SmsAuthenticator requires user autenticated");
@@ -180,8 +488,9 @@ public class SmsAuthenticator implements Authenticator {
     @Override
     public boolean configuredFor(KeycloakSession session, RealmModel realm, UserModel user) {
         log.debug("[COTO] Checking if user is configured for SMS OTP: {}", user.getUsername());
-//        return user.getFirstAttribute(PHONE_NUMBER) != null;
-        return true;
+        // Users the phone normalization job has not seen yet are checked when the code is sent
+        Boolean validNumber = PhoneAttributes.hasValidNumber(user);
+        return validNumber == null || validNumber;
     }
 
     @Override
@@ -195,34 +504,17 @@ public class SmsAuthenticator implements Authenticator {
     }
 
     /**
-     * Masks phone number for logging purposes (security)
+     * Identifies the code in the session, under which its attempts are reserved
      */
-    private String maskPhoneNumber(String phoneNumber) {
-        if (phoneNumber == null || phoneNumber.length() <= 4) {
-            return "****";
-        }
-        int visibleChars = Math.min(4, phoneNumber.length() / 3);
-        StringBuilder masked = new StringBuilder();
-        masked.append(phoneNumber.substring(0, visibleChars));
-        for (int i = visibleChars; i < phoneNumber.length() - visibleChars; i++) {
-            masked.append("*");
-        }
-        if (phoneNumber.length() > visibleChars) {
-            masked.append(phoneNumber.substring(phoneNumber.length() - visibleChars));
-        }
-        return masked.toString();
+    private String codeKey(AuthenticationFlowContext context) {
+        AuthenticationSessionModel authSession = context.getAuthenticationSession();
+        return context.getRealm().getId() + ":" + dispatchKey(authSession) + ":" + authSession.getAuthNote(SMSFields.CODE_SENT_AT.getValue());
     }
 
     /**
-     * Basic phone number validation
+     * Identifies the browser tab of an authentication session, which is where async send results are reported
      */
-    private boolean isValidPhoneNumber(String phoneNumber) {
-        if (phoneNumber == null || phoneNumber.trim().isEmpty()) {
-            return false;
-        }
-        // Remove espaços e hífens
-        String cleanNumber = phoneNumber.replaceAll("[\\s\\-]", "");
-        // Valida formato internacional: começa com + seguido de 8 a 15 dígitos
-        return cleanNumber.matches("^\\+[1-9]\\d{7,14}$");
+    private String dispatchKey(AuthenticationSessionModel authSession) {
+        return authSession.getParentSession().getId() + "." + authSession.getTabId();
     }
-}
\ No newline at end of file
+}
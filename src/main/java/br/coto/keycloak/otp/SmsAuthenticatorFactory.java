@@ -1,16 +1,33 @@
 package br.coto.keycloak.otp;
 
-import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
-import br.coto.keycloak.otp.helpers.Brokers;
+import br.coto.keycloak.otp.brokers.BrokerProviders;
+import br.coto.keycloak.otp.brokers.BrokerRegistry;
+import br.coto.keycloak.otp.brokers.routing.BrokerRouter;
+import br.coto.keycloak.otp.delivery.DeliveryTracker;
+import br.coto.keycloak.otp.dispatch.SmsDispatcher;
 import br.coto.keycloak.otp.helpers.SMSFields;
+import br.coto.keycloak.otp.outbox.SmsOutbox;
+import br.coto.keycloak.otp.settings.SmsSettings;
+import br.coto.keycloak.otp.settings.SmsSettingsCache;
+import br.coto.keycloak.otp.settings.SmsTemplateCache;
+import br.coto.keycloak.otp.tracing.SmsTracing;
 import org.keycloak.Config;
 import org.keycloak.authentication.Authenticator;
 import org.keycloak.authentication.AuthenticatorFactory;
 import org.keycloak.models.AuthenticationExecutionModel;
+import org.keycloak.models.AuthenticatorConfigModel;
 import org.keycloak.models.KeycloakSession;
 import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+import org.keycloak.timer.TimerProvider;
+import org.keycloak.tracing.TracingProvider;
 import org.keycloak.provider.ProviderConfigProperty;
 
 import lombok.extern.slf4j.Slf4j;
@@ -19,8 +36,18 @@ import lombok.extern.slf4j.Slf4j;
 public class SmsAuthenticatorFactory implements AuthenticatorFactory {
 
     public static final String PROVIDER_ID = "sms-authenticator";
+    public static final String NO_FALLBACK = "None";
 
-    private static final SmsAuthenticator SINGLETON = new SmsAuthenticator();
+    private BrokerProviders brokerProviders;
+    private BrokerRegistry brokerRegistry;
+    private SmsDispatcher dispatcher;
+    private SmsOutbox outbox;
+    private DeliveryTracker deliveryTracker;
+    private SmsSettingsCache settingsCache;
+    private SmsTemplateCache templateCache;
+    private long outboxIntervalMillis;
+    private boolean warmUp;
+    private SmsAuthenticator singleton;
 
     @Override
     public String getId() {
@@ -49,7 +76,8 @@ public class SmsAuthenticatorFactory implements AuthenticatorFactory {
 
     @Override
     public boolean isUserSetupAllowed() {
-        return true;
+        // There is no required action to set up a phone number, so a user without one must not skip the step
+        return false;
     }
 
     @Override
@@ -59,38 +87,171 @@ public class SmsAuthenticatorFactory implements AuthenticatorFactory {
 
     @Override
     public List<ProviderConfigProperty> getConfigProperties() {
-        String[] brokers = Arrays.stream(Brokers.values())
-                                .map(Brokers::getDisplayName)
+        List<String> displayNames = (brokerProviders != null ? brokerProviders : BrokerProviders.load()).getDisplayNames();
+        String[] brokers = displayNames.toArray(String[]::new);
+        String[] fallbackBrokers = Stream.concat(Stream.of(NO_FALLBACK), displayNames.stream())
                                 .toArray(String[]::new);
 
         return List.of(
                 new ProviderConfigProperty(SMSFields.CODE_LENGTH.getValue(), "Code length", "The number of digits of the generated code.", ProviderConfigProperty.NUMBER_TYPE, 6),
                 new ProviderConfigProperty(SMSFields.CODE_TTL.getValue(), "Time-to-live", "The time to live in seconds for the code to be valid.", ProviderConfigProperty.NUMBER_TYPE, "300"),
+                new ProviderConfigProperty(SMSFields.RESEND_INTERVAL.getValue(), "Resend interval", "Seconds before a new code can be sent. Reloading the page within this interval shows the form again without sending another SMS.", ProviderConfigProperty.NUMBER_TYPE, "30"),
                 new ProviderConfigProperty(SMSFields.SENDER_NAME.getValue(), "Sender Name", "The sender nema is displayed as the message sender on the receiving device.", ProviderConfigProperty.STRING_TYPE, "Keycloak"),
                 new ProviderConfigProperty(SMSFields.SIMULATION_MODE.getValue(), "Simulation mode", "In simulation mode, the SMS won't be sent, but printed to the server logs", ProviderConfigProperty.BOOLEAN_TYPE, true),
                 new ProviderConfigProperty(SMSFields.PHONE_ATTRIBUTE.getValue(), "Phone Attribute Name", "Define the name of the attribute to get the phone number", ProviderConfigProperty.USER_PROFILE_ATTRIBUTE_LIST_TYPE, null ),
                 new ProviderConfigProperty(SMSFields.BROKER_LIST.getValue(), "Broker List", "List of supported brokers", ProviderConfigProperty.LIST_TYPE, null, brokers ),
                 new ProviderConfigProperty(SMSFields.BROKER_KEY.getValue(), "Broker Key/User", "The username or api key", ProviderConfigProperty.STRING_TYPE, null ),
                 new ProviderConfigProperty(SMSFields.BROKER_SECRET.getValue(), "Broker Secret/Pass", "The password or api key", ProviderConfigProperty.PASSWORD, null ),
-                new ProviderConfigProperty(SMSFields.BROKER_SHORT_CODE.getValue(), "Broker ShortCode/From Number", "The sender number", ProviderConfigProperty.STRING_TYPE, null )
+                new ProviderConfigProperty(SMSFields.BROKER_URL.getValue(), "Broker URL", "Base URL of the broker API. Leave empty to use the provider default; set it to reach a proxy or a stub server", ProviderConfigProperty.STRING_TYPE, null ),
+                new ProviderConfigProperty(SMSFields.BROKER_SHORT_CODE.getValue(), "Broker ShortCode/From Number", "The sender number. With Twilio, a Messaging Service SID (MG...) sends from the number pool of the service", ProviderConfigProperty.STRING_TYPE, null ),
+                new ProviderConfigProperty(SMSFields.ASYNC_DISPATCH.getValue(), "Asynchronous dispatch", "Render the code form right away and send the SMS in background. Send failures are reported when the user submits the code.", ProviderConfigProperty.BOOLEAN_TYPE, false ),
+                new ProviderConfigProperty(SMSFields.FALLBACK_BROKER.getValue(), "Fallback Broker", "Broker used when the main broker fails or is unhealthy", ProviderConfigProperty.LIST_TYPE, NO_FALLBACK, fallbackBrokers ),
+                new ProviderConfigProperty(SMSFields.FALLBACK_BROKER_KEY.getValue(), "Fallback Broker Key/User", "The username or api key of the fallback broker", ProviderConfigProperty.STRING_TYPE, null ),
+                new ProviderConfigProperty(SMSFields.FALLBACK_BROKER_SECRET.getValue(), "Fallback Broker Secret/Pass", "The password or api key of the fallback broker", ProviderConfigProperty.PASSWORD, null ),
+                new ProviderConfigProperty(SMSFields.FALLBACK_BROKER_URL.getValue(), "Fallback Broker URL", "Base URL of the fallback broker API. Leave empty to use the provider default", ProviderConfigProperty.STRING_TYPE, null ),
+                new ProviderConfigProperty(SMSFields.FALLBACK_BROKER_SHORT_CODE.getValue(), "Fallback Broker ShortCode/From Number", "The sender number of the fallback broker, or a Twilio Messaging Service SID", ProviderConfigProperty.STRING_TYPE, null ),
+                new ProviderConfigProperty(SMSFields.ROUTING_STRATEGY.getValue(), "Routing Strategy", "ORDERED keeps the main broker first while it is healthy, LATENCY prefers the healthy broker with the lowest p95 latency", ProviderConfigProperty.LIST_TYPE, BrokerRouter.Strategy.ORDERED.name(), BrokerRouter.Strategy.ORDERED.name(), BrokerRouter.Strategy.LATENCY.name() ),
+                new ProviderConfigProperty(SMSFields.HEDGE.getValue(), "Hedged sends", "Also send the code through the fallback broker when the main broker takes longer than its p95 latency", ProviderConfigProperty.BOOLEAN_TYPE, false ),
+                new ProviderConfigProperty(SMSFields.CIRCUIT_FAILURE_THRESHOLD.getValue(), "Circuit breaker threshold", "Consecutive failures after which a broker is skipped", ProviderConfigProperty.NUMBER_TYPE, "5" ),
+                new ProviderConfigProperty(SMSFields.CIRCUIT_OPEN_SECONDS.getValue(), "Circuit breaker cool-down", "Seconds a broker is skipped before a trial request is sent again", ProviderConfigProperty.NUMBER_TYPE, "30" ),
+                new ProviderConfigProperty(SMSFields.MAX_CONCURRENT_PER_BROKER.getValue(), "Max concurrent sends per broker", "Requests in flight to one broker before new ones are rejected (0 = unlimited)", ProviderConfigProperty.NUMBER_TYPE, "50" ),
+                new ProviderConfigProperty(SMSFields.MAX_CONCURRENT_PER_REALM.getValue(), "Max concurrent sends per realm", "Requests in flight for this realm before new ones are rejected (0 = unlimited)", ProviderConfigProperty.NUMBER_TYPE, "20" ),
+                new ProviderConfigProperty(SMSFields.MAX_PER_SECOND_PER_REALM.getValue(), "Max SMS per second per realm", "Messages this realm can send per second on each node before new ones are rejected (0 = unlimited)", ProviderConfigProperty.NUMBER_TYPE, "0" ),
+                new ProviderConfigProperty(SMSFields.RATE_LIMIT_BURST.getValue(), "Rate limit burst", "Codes that can be sent in a row to the same user or phone number (0 = no limit)", ProviderConfigProperty.NUMBER_TYPE, "3" ),
+                new ProviderConfigProperty(SMSFields.RATE_LIMIT_REFILL_SECONDS.getValue(), "Rate limit refill", "Seconds after which one more code can be sent once the burst is used", ProviderConfigProperty.NUMBER_TYPE, "60" ),
+                new ProviderConfigProperty(SMSFields.MAX_ATTEMPTS.getValue(), "Max attempts per code", "Wrong entries after which the code is dropped and a new one has to be sent (0 = no limit)", ProviderConfigProperty.NUMBER_TYPE, "5" ),
+                new ProviderConfigProperty(SMSFields.LOCKOUT_ATTEMPTS.getValue(), "Lockout threshold", "Wrong codes a user can enter, across sessions and codes, before being locked out for the code time-to-live (0 = no lockout). From the third one, each wrong code doubles the wait before the next one is checked", ProviderConfigProperty.NUMBER_TYPE, "10" ),
+                new ProviderConfigProperty(SMSFields.BATCH_MAX_SIZE.getValue(), "Batch size", "Concurrent messages sent in a single request by brokers that support it, such as Zenvia (1 = no batching)", ProviderConfigProperty.NUMBER_TYPE, "1" ),
+                new ProviderConfigProperty(SMSFields.BATCH_WINDOW_MILLIS.getValue(), "Batch window", "Milliseconds a batch waits for more messages before it is sent", ProviderConfigProperty.NUMBER_TYPE, "5" ),
+                new ProviderConfigProperty(SMSFields.OUTBOX.getValue(), "Durable outbox", "Store each SMS in the database before sending it, and retry it in background with backoff until it is sent or the code expires", ProviderConfigProperty.BOOLEAN_TYPE, false ),
+                new ProviderConfigProperty(SMSFields.DELIVERY_RECEIPTS.getValue(), "Delivery receipts", "Ask the broker to report the delivery of each code, send undelivered codes again through the next broker and show the delivery status on the code form", ProviderConfigProperty.BOOLEAN_TYPE, false )
         );
     }
 
     @Override
     public Authenticator create(KeycloakSession session) {
-        return SINGLETON;
+        return singleton;
     }
 
     @Override
     public void init(Config.Scope config) {
+        brokerProviders = BrokerProviders.load();
+        brokerRegistry = new BrokerRegistry(brokerProviders);
+        int dispatchThreads = config.getInt("dispatchThreads", 8);
+        dispatcher = new SmsDispatcher(
+                dispatchThreads,
+                config.getInt("dispatchQueueDepth", 1000),
+                config.getInt("dispatchThreadsPerRealm", dispatchThreads),
+                SmsDispatcher.OverflowPolicy.valueOf(config.get("dispatchOverflow", "reject").toUpperCase(Locale.ROOT)));
+        outbox = new SmsOutbox(
+                config.getInt("outboxBatchSize", 100),
+                config.getInt("outboxMaxAttempts", 5),
+                config.getInt("outboxBackoff", 5) * 1000L);
+        outboxIntervalMillis = config.getInt("outboxInterval", 5) * 1000L;
+        warmUp = config.getBoolean("warmUp", false);
+        settingsCache = new SmsSettingsCache();
+        templateCache = new SmsTemplateCache();
+        deliveryTracker = new DeliveryTracker(brokerProviders, brokerRegistry, dispatcher, settingsCache);
+        singleton = new SmsAuthenticator(brokerRegistry, dispatcher, outbox, deliveryTracker, settingsCache, templateCache);
     }
 
     @Override
     public void postInit(KeycloakSessionFactory factory) {
+        factory.register(event -> {
+            if (event instanceof RealmModel.RealmRemovedEvent) {
+                String realmId = ((RealmModel.RealmRemovedEvent) event).getRealm().getId();
+                brokerRegistry.evictRealm(realmId);
+                dispatcher.evictRealm(realmId);
+                settingsCache.evictRealm(realmId);
+                templateCache.evictRealm(realmId);
+            }
+        });
+        KeycloakModelUtils.runJobInTransaction(factory, session -> {
+            SmsTracing.install(session.getProvider(TracingProvider.class));
+            session.getProvider(TimerProvider.class).schedule(() -> {
+                outbox.flushSettled(factory);
+                outbox.drain(factory, brokerRegistry, dispatcher);
+            }, outboxIntervalMillis, "coto-sms-outbox");
+        });
+        if (warmUp) {
+            // In background, so an unreachable provider does not delay the startup
+            Thread thread = new Thread(() -> warmUpBrokers(factory), "coto-sms-warm-up");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * Creates the broker services of every SMS authenticator config of every realm and warms them up, so the first
+     * logins after a restart do not pay for class loading, DNS resolution and TLS handshakes.
+     */
+    private void warmUpBrokers(KeycloakSessionFactory factory) {
+        long start = System.currentTimeMillis();
+        List<ConfiguredRealm> configs;
+        try {
+            configs = KeycloakModelUtils.runJobInTransactionWithResult(factory, session -> session.realms().getRealmsStream()
+                    .flatMap(realm -> realm.getAuthenticationFlowsStream()
+                            .flatMap(flow -> realm.getAuthenticationExecutionsStream(flow.getId()))
+                            .filter(execution -> PROVIDER_ID.equals(execution.getAuthenticator())
+                                    && !execution.isDisabled() && execution.getAuthenticatorConfig() != null)
+                            .map(execution -> realm.getAuthenticatorConfigById(execution.getAuthenticatorConfig()))
+                            .filter(Objects::nonNull)
+                            .map(config -> new ConfiguredRealm(realm.getId(), realm.getName(), config)))
+                    .collect(Collectors.toList()));
+        } catch (RuntimeException e) {
+            log.warn("[COTO] SMS broker warm-up skipped: {}", e.getMessage());
+            return;
+        }
+
+        for (ConfiguredRealm configured : configs) {
+            SmsSettings settings;
+            try {
+                settings = settingsCache.get(configured.realmId, configured.config);
+            } catch (IllegalArgumentException e) {
+                log.warn("[COTO] Skipping warm-up of an invalid SMS authenticator config in realm {}: {}", configured.realmName, e.getMessage());
+                continue;
+            }
+            brokerRegistry.warmUp(configured.realmId, configured.realmName, configured.config.getId(), settings.getPlan());
+        }
+        log.info("[COTO] SMS broker warm-up of {} authenticator configs done in {} ms", configs.size(), System.currentTimeMillis() - start);
+    }
+
+    public BrokerProviders getBrokerProviders() {
+        return brokerProviders;
+    }
+
+    public DeliveryTracker getDeliveryTracker() {
+        return deliveryTracker;
+    }
+
+    public BrokerRegistry getBrokerRegistry() {
+        return brokerRegistry;
+    }
+
+    public SmsDispatcher getDispatcher() {
+        return dispatcher;
     }
 
     @Override
     public void close() {
+        log.debug("[COTO] Closing SmsAuthenticatorFactory");
+        if (dispatcher != null) {
+            dispatcher.close();
+        }
+        if (brokerRegistry != null) {
+            brokerRegistry.close();
+        }
     }
 
-}
\ No newline at end of file
+    private static class ConfiguredRealm {
+        private final String realmId;
+        private final String realmName;
+        private final AuthenticatorConfigModel config;
+
+        private ConfiguredRealm(String realmId, String realmName, AuthenticatorConfigModel config) {
+            this.realmId = realmId;
+            this.realmName = realmName;
+            this.config = config;
+        }
+    }
+}
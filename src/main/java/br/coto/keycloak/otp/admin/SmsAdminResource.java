@@ -0,0 +1,47 @@
+package br.coto.keycloak.otp.admin;
+
+import br.coto.keycloak.otp.SmsAuthenticatorFactory;
+import br.coto.keycloak.otp.brokers.stats.BrokerStatsResource;
+import br.coto.keycloak.otp.normalization.PhoneNormalizationJobs;
+import br.coto.keycloak.otp.normalization.PhoneNormalizationResource;
+import jakarta.ws.rs.Path;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.resources.admin.AdminEventBuilder;
+import org.keycloak.services.resources.admin.fgap.AdminPermissionEvaluator;
+
+/**
+ * Root of the SMS OTP admin endpoints, mounted by Keycloak under {@code /admin/realms/{realm}/sms-otp} once the
+ * admin is authenticated. Each sub-resource checks its own permissions.
+ */
+public class SmsAdminResource {
+
+    private final KeycloakSession session;
+    private final RealmModel realm;
+    private final AdminPermissionEvaluator auth;
+    private final AdminEventBuilder adminEvent;
+    private final PhoneNormalizationJobs normalizationJobs;
+    private final SmsAuthenticatorFactory authenticatorFactory;
+
+    public SmsAdminResource(KeycloakSession session, RealmModel realm, AdminPermissionEvaluator auth,
+                            AdminEventBuilder adminEvent, PhoneNormalizationJobs normalizationJobs,
+                            SmsAuthenticatorFactory authenticatorFactory) {
+        this.session = session;
+        this.realm = realm;
+        this.auth = auth;
+        this.adminEvent = adminEvent;
+        this.normalizationJobs = normalizationJobs;
+        this.authenticatorFactory = authenticatorFactory;
+    }
+
+    @Path("phone-normalization")
+    public PhoneNormalizationResource phoneNormalization() {
+        return new PhoneNormalizationResource(session, realm, auth, adminEvent, normalizationJobs);
+    }
+
+    @Path("brokers")
+    public BrokerStatsResource brokers() {
+        return new BrokerStatsResource(session, realm, auth, adminEvent, authenticatorFactory.getBrokerRegistry(),
+                authenticatorFactory.getDispatcher());
+    }
+}
@@ -0,0 +1,29 @@
+package br.coto.keycloak.otp.admin;
+
+import br.coto.keycloak.otp.SmsAuthenticatorFactory;
+import br.coto.keycloak.otp.normalization.PhoneNormalizationJobs;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.resources.admin.AdminEventBuilder;
+import org.keycloak.services.resources.admin.ext.AdminRealmResourceProvider;
+import org.keycloak.services.resources.admin.fgap.AdminPermissionEvaluator;
+
+public class SmsAdminResourceProvider implements AdminRealmResourceProvider {
+
+    private final PhoneNormalizationJobs normalizationJobs;
+    private final SmsAuthenticatorFactory authenticatorFactory;
+
+    public SmsAdminResourceProvider(PhoneNormalizationJobs normalizationJobs, SmsAuthenticatorFactory authenticatorFactory) {
+        this.normalizationJobs = normalizationJobs;
+        this.authenticatorFactory = authenticatorFactory;
+    }
+
+    @Override
+    public Object getResource(KeycloakSession session, RealmModel realm, AdminPermissionEvaluator auth, AdminEventBuilder adminEvent) {
+        return new SmsAdminResource(session, realm, auth, adminEvent, normalizationJobs, authenticatorFactory);
+    }
+
+    @Override
+    public void close() {
+    }
+}
@@ -0,0 +1,61 @@
+package br.coto.keycloak.otp.admin;
+
+import br.coto.keycloak.otp.SmsAuthenticatorFactory;
+import br.coto.keycloak.otp.normalization.PhoneNormalizationJobs;
+import lombok.extern.slf4j.Slf4j;
+import org.keycloak.Config;
+import org.keycloak.authentication.Authenticator;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.resources.admin.ext.AdminRealmResourceProvider;
+import org.keycloak.services.resources.admin.ext.AdminRealmResourceProviderFactory;
+
+/**
+ * Registers the SMS OTP admin endpoints. Options are read from {@code spi-admin-realm-restapi-extension-sms-otp-*}.
+ * The broker endpoints share the brokers and dispatcher of the {@link SmsAuthenticatorFactory}.
+ */
+@Slf4j
+public class SmsAdminResourceProviderFactory implements AdminRealmResourceProviderFactory {
+
+    public static final String PROVIDER_ID = "sms-otp";
+
+    private PhoneNormalizationJobs normalizationJobs;
+    private SmsAdminResourceProvider singleton;
+
+    @Override
+    public AdminRealmResourceProvider create(KeycloakSession session) {
+        return singleton;
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+        normalizationJobs = new PhoneNormalizationJobs(
+                config.getInt("normalizationPageSize", 500),
+                config.getInt("normalizationParallelism", 4));
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        singleton = new SmsAdminResourceProvider(normalizationJobs,
+                (SmsAuthenticatorFactory) factory.getProviderFactory(Authenticator.class, SmsAuthenticatorFactory.PROVIDER_ID));
+        factory.register(event -> {
+            if (event instanceof RealmModel.RealmRemovedEvent) {
+                normalizationJobs.evictRealm(((RealmModel.RealmRemovedEvent) event).getRealm().getId());
+            }
+        });
+    }
+
+    @Override
+    public void close() {
+        log.debug("[COTO] Closing SmsAdminResourceProviderFactory");
+        if (normalizationJobs != null) {
+            normalizationJobs.close();
+        }
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+}
@@ -9,4 +9,18 @@ public class BrokerConfig {
     private String shortCode;
     private String key;
     private String secret;
+    /**
+     * Base URL of the broker API, {@code null} for the provider default. Used to point a broker at a stub server.
+     */
+    private String baseUrl;
+    /**
+     * Messages coalesced into one request by brokers that support batching (1 = no batching).
+     */
+    @Builder.Default
+    private int batchMaxSize = 1;
+    /**
+     * How long a batch waits for more messages before it is sent.
+     */
+    @Builder.Default
+    private long batchWindowMillis = 5;
 }
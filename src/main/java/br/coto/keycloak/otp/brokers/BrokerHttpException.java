@@ -0,0 +1,19 @@
+package br.coto.keycloak.otp.brokers;
+
+import lombok.Getter;
+
+/**
+ * Thrown by HTTP brokers when the provider answers with a non-2xx status.
+ */
+@Getter
+public class BrokerHttpException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int statusCode;
+
+    public BrokerHttpException(String message, int statusCode) {
+        super(message);
+        this.statusCode = statusCode;
+    }
+}
@@ -0,0 +1,86 @@
+package br.coto.keycloak.otp.brokers;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.ServiceLoader;
+import java.util.stream.Collectors;
+
+/**
+ * The {@link IBrokerServiceProvider}s found on the class path. Authenticator configs store the display name picked
+ * in the broker lists, so a broker is looked up by display name first and by id otherwise, both ignoring case.
+ */
+@Slf4j
+public class BrokerProviders {
+
+    private final Map<String, IBrokerServiceProvider> providers;
+    private final Map<String, IBrokerServiceProvider> byDisplayName;
+
+    public BrokerProviders(Iterable<IBrokerServiceProvider> providers) {
+        Map<String, IBrokerServiceProvider> byId = new LinkedHashMap<>();
+        for (IBrokerServiceProvider provider : providers) {
+            String id = provider.getId().toLowerCase(Locale.ROOT);
+            IBrokerServiceProvider previous = byId.putIfAbsent(id, provider);
+            if (previous != null) {
+                log.warn("[COTO] Ignoring broker provider {}: id {} is already used by {}",
+                        provider.getClass().getName(), id, previous.getClass().getName());
+            }
+        }
+        this.providers = Collections.unmodifiableMap(byId);
+
+        Map<String, IBrokerServiceProvider> byName = new LinkedHashMap<>();
+        for (IBrokerServiceProvider provider : byId.values()) {
+            if (provider.getDisplayName() == null) {
+                continue;
+            }
+            String name = provider.getDisplayName().toLowerCase(Locale.ROOT);
+            IBrokerServiceProvider previous = byName.putIfAbsent(name, provider);
+            if (previous != null) {
+                log.warn("[COTO] Broker provider {} shares the display name {} with {}, only {} can be picked",
+                        provider.getId(), provider.getDisplayName(), previous.getId(), previous.getId());
+            }
+        }
+        this.byDisplayName = Collections.unmodifiableMap(byName);
+    }
+
+    public static BrokerProviders load() {
+        BrokerProviders loaded = new BrokerProviders(
+                ServiceLoader.load(IBrokerServiceProvider.class, IBrokerServiceProvider.class.getClassLoader()));
+        log.info("[COTO] SMS brokers available: {}", loaded.providers.keySet());
+        return loaded;
+    }
+
+    public IBrokerService create(String brokerName, BrokerConfig config) throws Exception {
+        log.debug("[COTO] Getting broker service for: {}", brokerName);
+        IBrokerServiceProvider provider = get(brokerName);
+        if (provider == null) {
+            throw new Exception("[COTO] Unsupported broker: " + brokerName);
+        }
+        return provider.create(config);
+    }
+
+    /**
+     * @param brokerName display name stored in the authenticator config, or id of the provider
+     * @return the provider with that display name or id, or {@code null}
+     */
+    public IBrokerServiceProvider get(String brokerName) {
+        String key = brokerName.toLowerCase(Locale.ROOT);
+        IBrokerServiceProvider provider = byDisplayName.get(key);
+        return provider != null ? provider : providers.get(key);
+    }
+
+    /**
+     * Display names of the brokers that can be picked in the authenticator config, in discovery order.
+     */
+    public List<String> getDisplayNames() {
+        return providers.values().stream()
+                .map(IBrokerServiceProvider::getDisplayName)
+                .filter(Objects::nonNull)
+                .collect(Collectors.toList());
+    }
+}
@@ -0,0 +1,410 @@
+package br.coto.keycloak.otp.brokers;
+
+import br.coto.keycloak.otp.brokers.resilience.Bulkhead;
+import br.coto.keycloak.otp.brokers.resilience.CircuitBreaker;
+import br.coto.keycloak.otp.brokers.resilience.RealmQuota;
+import br.coto.keycloak.otp.brokers.resilience.ResilienceSettings;
+import br.coto.keycloak.otp.brokers.resilience.ResilientBrokerService;
+import br.coto.keycloak.otp.brokers.routing.BrokerHealth;
+import br.coto.keycloak.otp.brokers.routing.BrokerRouter;
+import br.coto.keycloak.otp.brokers.routing.RoutingPlan;
+import br.coto.keycloak.otp.brokers.stats.BrokerMonitor;
+import br.coto.keycloak.otp.metrics.SmsMetrics;
+import io.micrometer.core.instrument.Meter;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps one long-lived {@link IBrokerService} per distinct broker configuration, so the HTTP client
+ * (and its connection pool) is reused across logins instead of being rebuilt for every SMS.
+ * <p>
+ * Services are looked up by the authenticator config id. When the config of an authenticator changes,
+ * a new service is built for it and the previous one is closed once no other config references it and the
+ * requests already in flight to it have finished, or after {@value #RETIRE_TIMEOUT_MILLIS} ms at most.
+ * Each broker is guarded by its own circuit breaker and bulkhead, and all brokers used by a realm share the
+ * {@link RealmQuota} of the realm, so a saturated realm is refused before it takes capacity from the others.
+ * When the authenticator configs of a realm set different limits, the strictest ones apply to the realm.
+ * When more than one broker is configured, the returned service is a {@link BrokerRouter} over them.
+ * The requests of each realm to each broker are followed by a {@link BrokerMonitor}, which is also where a broker
+ * is paused.
+ */
+@Slf4j
+public class BrokerRegistry {
+
+    static final long RETIRE_TIMEOUT_MILLIS = 60_000;
+    private static final long RETIRE_POLL_MILLIS = 250;
+    private static final String RESEND_SEPARATOR = "/";
+
+    private final Map<BrokerTarget, IBrokerService> services = new ConcurrentHashMap<>();
+    private final Map<BrokerTarget, BrokerHealth> health = new ConcurrentHashMap<>();
+    private final Map<BrokerTarget, Guard> guards = new ConcurrentHashMap<>();
+    private final Map<MonitorKey, BrokerMonitor> monitors = new ConcurrentHashMap<>();
+    private final Map<String, RealmQuota> realmQuotas = new ConcurrentHashMap<>();
+    private final Map<String, Meter> realmGauges = new ConcurrentHashMap<>();
+    private final Map<String, Binding> bindings = new ConcurrentHashMap<>();
+    private final Set<BrokerTarget> warmedUp = ConcurrentHashMap.newKeySet();
+    private final Set<IBrokerService> retiring = ConcurrentHashMap.newKeySet();
+    private final BrokerProviders providers;
+    private final ExecutorService hedgeExecutor;
+    private final ScheduledExecutorService retirer;
+
+    public BrokerRegistry(BrokerProviders providers) {
+        this.providers = providers;
+        AtomicInteger counter = new AtomicInteger();
+        this.hedgeExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "coto-sms-hedge-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.retirer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "coto-sms-retire");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public IBrokerService get(String realmId, String realmName, String configId, RoutingPlan plan) throws Exception {
+        Binding binding = bindings.get(configId);
+        if (binding != null && binding.getPlan().equals(plan)) {
+            return binding.getService();
+        }
+
+        ResilienceSettings settings = plan.getResilience();
+        RealmQuota realmQuota = realmQuotas.computeIfAbsent(realmId, key ->
+                new RealmQuota(settings.getMaxConcurrentPerRealm(), settings.getMaxPerSecondPerRealm()));
+        realmGauges.computeIfAbsent(realmId, key -> SmsMetrics.realmGauge("realm.in.flight",
+                "Broker requests in flight for the realm", realmName, () -> {
+                    RealmQuota quota = realmQuotas.get(key);
+                    return quota != null ? quota.getInFlight() : 0;
+                }));
+
+        List<BrokerRouter.Route> routes = new ArrayList<>(plan.getTargets().size());
+        for (BrokerTarget target : plan.getTargets()) {
+            Guard guard = guards.compute(target, (key, current) ->
+                    current != null && current.getSettings().equals(settings) ? current : new Guard(settings,
+                            new CircuitBreaker(key.getBrokerName(), settings.getFailureThreshold(), settings.getOpenMillis()),
+                            new Bulkhead(settings.getMaxConcurrentPerBroker())));
+            IBrokerService guarded = new ResilientBrokerService(realmName, target.getBrokerName(), acquire(target, configId),
+                    guard.getCircuitBreaker(), guard.getBulkhead(), realmQuota,
+                    monitors.computeIfAbsent(new MonitorKey(realmId, target), key -> new BrokerMonitor()));
+            routes.add(new BrokerRouter.Route(target.getBrokerName(), guarded,
+                    health.computeIfAbsent(target, key -> new BrokerHealth())));
+        }
+        IBrokerService service = routes.size() == 1
+                ? routes.get(0).getService()
+                : new BrokerRouter(routes, plan.getStrategy(), plan.isHedge(), hedgeExecutor);
+
+        Binding previous = bindings.put(configId, new Binding(realmId, plan, service));
+        if (previous != null) {
+            releaseResends(configId, plan);
+        }
+        resizeQuota(realmId);
+        if (previous != null) {
+            log.info("[COTO] Broker configuration changed for config {}, rebuilding broker service", configId);
+            previous.getPlan().getTargets().forEach(this::release);
+        }
+        return service;
+    }
+
+    /**
+     * Service of a single broker of the config, to send a message again through that broker only. It is bound
+     * under {@code <configId>/<broker>}, and released when the config no longer has that broker configured the same
+     * way.
+     */
+    public IBrokerService getResend(String realmId, String realmName, String configId, RoutingPlan plan,
+                                    BrokerTarget target) throws Exception {
+        String resendId = configId + RESEND_SEPARATOR + target.getBrokerName();
+        RoutingPlan single = plan.only(target);
+        Binding binding = bindings.get(resendId);
+        if (binding != null && binding.getPlan().equals(single)) {
+            return binding.getService();
+        }
+        releaseResends(configId, plan);
+        return get(realmId, realmName, resendId, single);
+    }
+
+    /**
+     * Drops the resend bindings of a config that no broker of its current plan matches, so the brokers of an older
+     * config are not kept open by them.
+     */
+    private void releaseResends(String configId, RoutingPlan plan) {
+        String prefix = configId + RESEND_SEPARATOR;
+        Set<RoutingPlan> current = plan.getTargets().stream().map(plan::only).collect(Collectors.toSet());
+        bindings.forEach((bindingId, binding) -> {
+            if (bindingId.startsWith(prefix) && !current.contains(binding.getPlan()) && bindings.remove(bindingId, binding)) {
+                log.debug("[COTO] Releasing resend binding {} of a changed config", bindingId);
+                binding.getPlan().getTargets().forEach(this::release);
+            }
+        });
+    }
+
+    /**
+     * Applies the strictest limits of the authenticator configs of the realm to its quota. A limit of zero or less
+     * is unlimited, so it only applies when every config leaves it unlimited.
+     */
+    private synchronized void resizeQuota(String realmId) {
+        RealmQuota quota = realmQuotas.get(realmId);
+        if (quota == null) {
+            return;
+        }
+        int maxConcurrent = 0;
+        int maxPerSecond = 0;
+        for (Binding binding : bindings.values()) {
+            if (binding.getRealmId().equals(realmId)) {
+                ResilienceSettings settings = binding.getPlan().getResilience();
+                maxConcurrent = strictest(maxConcurrent, settings.getMaxConcurrentPerRealm());
+                maxPerSecond = strictest(maxPerSecond, settings.getMaxPerSecondPerRealm());
+            }
+        }
+        if (!quota.hasLimits(maxConcurrent, maxPerSecond)) {
+            log.debug("[COTO] Limits of realm {} set to {} concurrent and {} per second", realmId, maxConcurrent, maxPerSecond);
+            quota.resize(maxConcurrent, maxPerSecond);
+        }
+    }
+
+    private static int strictest(int current, int limit) {
+        if (limit <= 0) {
+            return current;
+        }
+        return current <= 0 ? limit : Math.min(current, limit);
+    }
+
+    /**
+     * Builds the services of the plan ahead of the first login and warms each broker up once.
+     * Failures are logged, never thrown: the broker is still used, and fails at login time as it would have.
+     */
+    public void warmUp(String realmId, String realmName, String configId, RoutingPlan plan) {
+        try {
+            get(realmId, realmName, configId, plan);
+        } catch (Exception e) {
+            log.warn("[COTO] Could not create the brokers of realm {}: {}", realmName, e.getMessage());
+            return;
+        }
+        for (BrokerTarget target : plan.getTargets()) {
+            IBrokerService service = services.get(target);
+            if (service == null || !warmedUp.add(target)) {
+                continue;
+            }
+            long start = System.nanoTime();
+            try {
+                service.warmUp();
+                log.info("[COTO] Broker {} of realm {} warmed up in {} ms", target.getBrokerName(), realmName,
+                        TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            } catch (Exception e) {
+                log.warn("[COTO] Warm-up of broker {} of realm {} failed: {}", target.getBrokerName(), realmName, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Live state of the brokers bound to the authenticator configs of a realm on this node, one entry per broker
+     * configuration. Only reads counters, so it never waits for a send.
+     */
+    public List<Map<String, Object>> stats(String realmId) {
+        Map<BrokerTarget, List<String>> configIds = new LinkedHashMap<>();
+        bindings.forEach((configId, binding) -> {
+            if (binding.getRealmId().equals(realmId)) {
+                binding.getPlan().getTargets().forEach(target -> configIds.computeIfAbsent(target, key -> new ArrayList<>()).add(configId));
+            }
+        });
+
+        List<Map<String, Object>> stats = new ArrayList<>(configIds.size());
+        configIds.forEach((target, configs) -> {
+            Map<String, Object> entry = new LinkedHashMap<>();
+            entry.put("broker", target.getBrokerName());
+            entry.put("configs", configs);
+            Guard guard = guards.get(target);
+            if (guard != null) {
+                entry.put("circuitBreaker", guard.getCircuitBreaker().getState().name());
+                // The bulkhead of a broker configuration is shared by every realm using it
+                entry.put("brokerInFlight", guard.getBulkhead().getInFlight());
+                entry.put("brokerConcurrencyLimit", guard.getBulkhead().getLimit());
+            }
+            BrokerMonitor monitor = monitors.get(new MonitorKey(realmId, target));
+            if (monitor != null) {
+                entry.putAll(monitor.snapshot());
+            }
+            IBrokerService service = services.get(target);
+            entry.put("pool", service != null ? service.stats() : Map.of());
+            stats.add(entry);
+        });
+        return stats;
+    }
+
+    /**
+     * Broker requests in flight for the realm, across its brokers
+     */
+    public int realmInFlight(String realmId) {
+        RealmQuota quota = realmQuotas.get(realmId);
+        return quota != null ? quota.getInFlight() : 0;
+    }
+
+    /**
+     * Pauses or resumes the brokers named {@code brokerName} in the realm. A paused broker refuses new requests of
+     * the realm until resumed, its configuration changes or the node restarts.
+     *
+     * @return the number of broker configurations changed, {@code 0} when the realm does not use such a broker
+     */
+    public int setPaused(String realmId, String brokerName, boolean paused) {
+        List<BrokerMonitor> matching = monitors(realmId, brokerName);
+        matching.forEach(monitor -> monitor.setPaused(paused));
+        return matching.size();
+    }
+
+    /**
+     * Requests of the realm in flight to the brokers named {@code brokerName}
+     */
+    public int inFlight(String realmId, String brokerName) {
+        return monitors(realmId, brokerName).stream().mapToInt(BrokerMonitor::getInFlight).sum();
+    }
+
+    private List<BrokerMonitor> monitors(String realmId, String brokerName) {
+        // Targets keep their broker name in lower case, while admins type it as the provider displays it
+        String name = brokerName.toLowerCase(Locale.ROOT);
+        List<BrokerMonitor> matching = new ArrayList<>();
+        bindings.values().stream()
+                .filter(binding -> binding.getRealmId().equals(realmId))
+                .flatMap(binding -> binding.getPlan().getTargets().stream())
+                .filter(target -> target.getBrokerName().equals(name))
+                .distinct()
+                .forEach(target -> matching.add(monitors.computeIfAbsent(new MonitorKey(realmId, target), key -> new BrokerMonitor())));
+        return matching;
+    }
+
+    /**
+     * Drops every service bound to an authenticator config of the given realm.
+     */
+    public void evictRealm(String realmId) {
+        bindings.forEach((configId, binding) -> {
+            if (binding.getRealmId().equals(realmId) && bindings.remove(configId, binding)) {
+                binding.getPlan().getTargets().forEach(this::release);
+            }
+        });
+        realmQuotas.remove(realmId);
+        monitors.keySet().removeIf(key -> key.getRealmId().equals(realmId));
+        Meter gauge = realmGauges.remove(realmId);
+        if (gauge != null) {
+            SmsMetrics.remove(gauge);
+        }
+    }
+
+    public synchronized void close() {
+        log.debug("[COTO] Closing {} broker services", services.size());
+        services.values().forEach(BrokerRegistry::closeQuietly);
+        services.clear();
+        retirer.shutdownNow();
+        retiring.forEach(BrokerRegistry::closeQuietly);
+        retiring.clear();
+        health.clear();
+        warmedUp.clear();
+        guards.clear();
+        monitors.clear();
+        realmQuotas.clear();
+        realmGauges.values().forEach(SmsMetrics::remove);
+        realmGauges.clear();
+        bindings.clear();
+        hedgeExecutor.shutdownNow();
+    }
+
+    private synchronized IBrokerService acquire(BrokerTarget target, String configId) throws Exception {
+        IBrokerService service = services.get(target);
+        if (service == null) {
+            log.debug("[COTO] Creating broker service {} for config {}", target.getBrokerName(), configId);
+            service = providers.create(target.getBrokerName(), target.getConfig());
+            services.put(target, service);
+        }
+        return service;
+    }
+
+    private synchronized void release(BrokerTarget target) {
+        boolean inUse = bindings.values().stream()
+                .anyMatch(binding -> binding.getPlan().getTargets().contains(target));
+        if (!inUse) {
+            health.remove(target);
+            warmedUp.remove(target);
+            guards.remove(target);
+            List<BrokerMonitor> inFlight = new ArrayList<>();
+            monitors.entrySet().removeIf(entry -> entry.getKey().getTarget().equals(target) && inFlight.add(entry.getValue()));
+            IBrokerService service = services.remove(target);
+            if (service != null) {
+                retire(target, service, inFlight);
+            }
+        }
+    }
+
+    /**
+     * Closes a service no config uses anymore once the requests its monitors count in flight have finished.
+     * Closing right away would fail the sends still running on its client, such as queued or outbox sends.
+     */
+    private void retire(BrokerTarget target, IBrokerService service, List<BrokerMonitor> inFlight) {
+        retiring.add(service);
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(RETIRE_TIMEOUT_MILLIS);
+        Runnable check = new Runnable() {
+            @Override
+            public void run() {
+                int pending = inFlight.stream().mapToInt(BrokerMonitor::getInFlight).sum();
+                if (pending > 0 && System.nanoTime() < deadline) {
+                    retirer.schedule(this, RETIRE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                if (pending > 0) {
+                    log.warn("[COTO] Closing broker service {} with {} requests still in flight", target.getBrokerName(), pending);
+                }
+                if (retiring.remove(service)) {
+                    closeQuietly(service);
+                }
+            }
+        };
+        try {
+            retirer.schedule(check, RETIRE_POLL_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            // The registry is closing and closes the retiring services itself
+            if (retiring.remove(service)) {
+                closeQuietly(service);
+            }
+        }
+    }
+
+    private static void closeQuietly(IBrokerService service) {
+        try {
+            service.close();
+        } catch (Exception e) {
+            log.warn("[COTO] Error closing broker service: {}", e.getMessage());
+        }
+    }
+
+    @Value
+    private static class Guard {
+        ResilienceSettings settings;
+        CircuitBreaker circuitBreaker;
+        Bulkhead bulkhead;
+    }
+
+    @Value
+    private static class MonitorKey {
+        String realmId;
+        BrokerTarget target;
+    }
+
+    @Value
+    private static class Binding {
+        String realmId;
+        RoutingPlan plan;
+        IBrokerService service;
+    }
+}
@@ -0,0 +1,19 @@
+package br.coto.keycloak.otp.brokers;
+
+import lombok.Value;
+
+import java.util.Locale;
+
+/**
+ * A broker name together with the credentials used to reach it.
+ */
+@Value
+public class BrokerTarget {
+    String brokerName;
+    BrokerConfig config;
+
+    public BrokerTarget(String brokerName, BrokerConfig config) {
+        this.brokerName = brokerName.toLowerCase(Locale.ROOT);
+        this.config = config;
+    }
+}
@@ -0,0 +1,29 @@
+package br.coto.keycloak.otp.brokers;
+
+import lombok.Value;
+
+/**
+ * A delivery report of a tracked message, as parsed by {@link IBrokerServiceProvider#parseReceipt}.
+ */
+@Value
+public class DeliveryReceipt {
+
+    public enum Status {
+        /**
+         * Accepted or still in transit, a final report may follow
+         */
+        SENT,
+        DELIVERED,
+        /**
+         * Rejected by the carrier or not delivered to the handset
+         */
+        FAILED
+    }
+
+    String messageId;
+    Status status;
+    /**
+     * Provider status or error code, for the logs
+     */
+    String detail;
+}
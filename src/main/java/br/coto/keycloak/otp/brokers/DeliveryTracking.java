@@ -0,0 +1,23 @@
+package br.coto.keycloak.otp.brokers;
+
+import lombok.Value;
+
+/**
+ * Asks a broker to report the delivery of a message: the provider calls back the receipts endpoint of the realm
+ * with {@code messageId}, which correlates the receipt with the login waiting for the code.
+ */
+@Value
+public class DeliveryTracking {
+    String messageId;
+    /**
+     * {@code .../realms/{realm}/sms-otp/receipts}, without the broker id
+     */
+    String receiptsUrl;
+
+    /**
+     * URL the given broker posts its receipts to, for providers that take it with each message
+     */
+    public String callbackUrl(String brokerId) {
+        return receiptsUrl + "/" + brokerId + "?id=" + messageId;
+    }
+}
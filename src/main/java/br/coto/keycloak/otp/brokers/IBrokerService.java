@@ -1,5 +1,69 @@
 package br.coto.keycloak.otp.brokers;
 
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
 public interface IBrokerService {
     void send(String to, String message) throws Exception;
+
+    /**
+     * Sends the message on the given executor. Brokers with a non-blocking client may override this to avoid
+     * holding an executor thread for the whole HTTP exchange.
+     *
+     * @throws java.util.concurrent.RejectedExecutionException if the executor cannot accept the task
+     */
+    default CompletableFuture<Void> sendAsync(String to, String message, Executor executor) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                send(to, message);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * Sends the message asking the provider to report its delivery for {@code tracking}. Brokers without delivery
+     * reports send it as an untracked message.
+     *
+     * @param tracking correlation of the delivery receipt, or {@code null} for an untracked message
+     */
+    default void send(String to, String message, DeliveryTracking tracking) throws Exception {
+        send(to, message);
+    }
+
+    /**
+     * Asynchronous {@link #send(String, String, DeliveryTracking)}.
+     *
+     * @throws java.util.concurrent.RejectedExecutionException if the executor cannot accept the task
+     */
+    default CompletableFuture<Void> sendAsync(String to, String message, DeliveryTracking tracking, Executor executor) {
+        return sendAsync(to, message, executor);
+    }
+
+    /**
+     * Prepares the service for the first message: resolves the provider host, opens a connection that the HTTP
+     * client keeps pooled and checks the credentials. Called once at startup when warm-up is enabled.
+     *
+     * @throws Exception when the provider cannot be reached or rejects the credentials
+     */
+    default void warmUp() throws Exception {
+    }
+
+    /**
+     * Sizes of the thread pools and queues of the service, shown by the admin stats endpoint. Read on request, so
+     * implementations must return counters kept up to date without locking the send path.
+     */
+    default Map<String, Number> stats() {
+        return Map.of();
+    }
+
+    /**
+     * Releases the resources held by the service (HTTP clients, threads). Called by the
+     * {@link BrokerRegistry} when the service is evicted or Keycloak shuts down.
+     */
+    default void close() {
+    }
 }
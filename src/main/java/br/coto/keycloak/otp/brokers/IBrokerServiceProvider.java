@@ -0,0 +1,55 @@
+package br.coto.keycloak.otp.brokers;
+
+import jakarta.ws.rs.core.HttpHeaders;
+
+import java.util.Map;
+
+/**
+ * Creates the {@link IBrokerService} of one SMS provider.
+ * <p>
+ * Implementations are discovered with {@link java.util.ServiceLoader}: list the class in
+ * {@code META-INF/services/br.coto.keycloak.otp.brokers.IBrokerServiceProvider} of the jar and drop the jar in the
+ * Keycloak {@code providers} directory next to this one.
+ */
+public interface IBrokerServiceProvider {
+
+    /**
+     * Unique lower-case id of the broker, e.g. {@code zenvia}. Configs store the display name, the id is only used
+     * when no broker has that display name.
+     */
+    String getId();
+
+    /**
+     * Name shown in the broker lists of the authenticator config, and stored in the config when picked, or
+     * {@code null} to keep the broker out of them
+     */
+    String getDisplayName();
+
+    /**
+     * @throws IllegalArgumentException when the config lacks a value the broker needs
+     */
+    IBrokerService create(BrokerConfig config);
+
+    /**
+     * Reads a delivery receipt posted by the provider to {@code .../sms-otp/receipts/{id}}.
+     *
+     * @param parameters query and form parameters of the callback
+     * @param body       raw request body
+     * @return the receipt, or {@code null} when the broker does not report deliveries or the request is not a receipt
+     */
+    default DeliveryReceipt parseReceipt(Map<String, String> parameters, String body) {
+        return null;
+    }
+
+    /**
+     * Checks that a receipt was signed by the provider with the credentials of {@code config}, a broker of the
+     * config that sent the message. Receipts that fail the check are refused.
+     *
+     * @param url            full URL the receipt was posted to, query included
+     * @param formParameters form parameters of the request body
+     * @return whether the receipt is authentic; {@code true} for providers that do not sign their receipts
+     */
+    default boolean verifyReceipt(BrokerConfig config, String url, Map<String, String> formParameters, HttpHeaders headers) {
+        return true;
+    }
+}
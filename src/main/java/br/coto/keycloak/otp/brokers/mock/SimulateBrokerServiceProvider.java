@@ -0,0 +1,26 @@
+package br.coto.keycloak.otp.brokers.mock;
+
+import br.coto.keycloak.otp.brokers.BrokerConfig;
+import br.coto.keycloak.otp.brokers.IBrokerService;
+import br.coto.keycloak.otp.brokers.IBrokerServiceProvider;
+
+/**
+ * Used by the simulation mode only, so it is not offered in the broker lists.
+ */
+public class SimulateBrokerServiceProvider implements IBrokerServiceProvider {
+
+    @Override
+    public String getId() {
+        return "simulate";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return null;
+    }
+
+    @Override
+    public IBrokerService create(BrokerConfig config) {
+        return new SimulateBrokerService(config);
+    }
+}
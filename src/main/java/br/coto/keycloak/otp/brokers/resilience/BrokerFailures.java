@@ -0,0 +1,56 @@
+package br.coto.keycloak.otp.brokers.resilience;
+
+import br.coto.keycloak.otp.brokers.BrokerHttpException;
+
+import java.io.IOException;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Tells failures of the broker itself from messages the broker refused.
+ * <p>
+ * Transport errors (connection, timeout), 5xx answers and 429 say the broker is unwell or overloaded; another
+ * attempt, or another broker, may succeed. Other 4xx answers and per-message rejections say the message itself
+ * was refused (unknown number, bad credentials), so they fail the same way everywhere and do not say anything
+ * about the health of the broker.
+ */
+public final class BrokerFailures {
+
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    private BrokerFailures() {
+    }
+
+    /**
+     * Whether {@code failure} counts against the health of the broker, for its circuit breaker.
+     */
+    public static boolean isBrokerFault(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof BrokerHttpException) {
+                int status = ((BrokerHttpException) cause).getStatusCode();
+                return status >= 500 || status == TOO_MANY_REQUESTS;
+            }
+            if (cause instanceof IOException || cause instanceof TimeoutException) {
+                return true;
+            }
+            if (cause.getCause() == cause) {
+                break;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether the message may be sent through another broker: the broker refused it without trying, or failed.
+     */
+    public static boolean isRetryable(Throwable failure) {
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof BrokerUnavailableException) {
+                return true;
+            }
+            if (cause.getCause() == cause) {
+                break;
+            }
+        }
+        return isBrokerFault(failure);
+    }
+}
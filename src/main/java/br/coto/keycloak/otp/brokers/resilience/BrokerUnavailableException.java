@@ -0,0 +1,13 @@
+package br.coto.keycloak.otp.brokers.resilience;
+
+/**
+ * Thrown without contacting the broker when its circuit breaker is open or its bulkhead is full.
+ */
+public class BrokerUnavailableException extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public BrokerUnavailableException(String message) {
+        super(message);
+    }
+}
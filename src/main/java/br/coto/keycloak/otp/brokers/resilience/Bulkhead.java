@@ -0,0 +1,47 @@
+package br.coto.keycloak.otp.brokers.resilience;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Caps the number of requests in flight. A full bulkhead rejects immediately instead of queueing.
+ * A limit of zero or less means unlimited. The limit can be changed while requests are in flight; lowering it
+ * only refuses new requests until enough of them have finished.
+ */
+public class Bulkhead {
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private volatile int limit;
+
+    public Bulkhead(int limit) {
+        this.limit = limit;
+    }
+
+    public boolean tryAcquire() {
+        while (true) {
+            int current = inFlight.get();
+            int max = limit;
+            if (max > 0 && current >= max) {
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void release() {
+        inFlight.decrementAndGet();
+    }
+
+    public void resize(int limit) {
+        this.limit = limit;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+}
@@ -0,0 +1,65 @@
+package br.coto.keycloak.otp.brokers.resilience;
+
+/**
+ * Limits shared by all brokers used by one realm on this node: requests in flight, and messages per second.
+ * <p>
+ * The rate is a token bucket holding at most one second of messages, refilled continuously. A limit of zero or
+ * less means unlimited. The limits are changed in place, so requests in flight and the tokens already spent
+ * still count against the new limits.
+ */
+public class RealmQuota {
+
+    private int maxPerSecond;
+    private final Bulkhead bulkhead;
+    private double tokens;
+    private long refilledAt;
+
+    public RealmQuota(int maxConcurrent, int maxPerSecond) {
+        this.maxPerSecond = maxPerSecond;
+        this.bulkhead = new Bulkhead(maxConcurrent);
+        this.tokens = maxPerSecond;
+        this.refilledAt = System.nanoTime();
+    }
+
+    public boolean tryAcquire() {
+        return bulkhead.tryAcquire();
+    }
+
+    public void release() {
+        bulkhead.release();
+    }
+
+    /**
+     * Takes one message of the rate budget of the current second.
+     */
+    public synchronized boolean tryAcquireRate() {
+        if (maxPerSecond <= 0) {
+            return true;
+        }
+        long now = System.nanoTime();
+        tokens = Math.min(maxPerSecond, tokens + (now - refilledAt) * maxPerSecond / 1e9);
+        refilledAt = now;
+        if (tokens < 1) {
+            return false;
+        }
+        tokens--;
+        return true;
+    }
+
+    public synchronized void resize(int maxConcurrent, int maxPerSecond) {
+        bulkhead.resize(maxConcurrent);
+        if (this.maxPerSecond <= 0 || (maxPerSecond > 0 && tokens > maxPerSecond)) {
+            tokens = maxPerSecond;
+            refilledAt = System.nanoTime();
+        }
+        this.maxPerSecond = maxPerSecond;
+    }
+
+    public synchronized boolean hasLimits(int maxConcurrent, int maxPerSecond) {
+        return bulkhead.getLimit() == maxConcurrent && this.maxPerSecond == maxPerSecond;
+    }
+
+    public int getInFlight() {
+        return bulkhead.getInFlight();
+    }
+}
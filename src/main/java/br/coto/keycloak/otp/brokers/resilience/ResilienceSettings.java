@@ -0,0 +1,24 @@
+package br.coto.keycloak.otp.brokers.resilience;
+
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * Circuit breaker, bulkhead and rate limits of one authenticator config.
+ */
+@Builder
+@Value
+public class ResilienceSettings {
+    @Builder.Default
+    int failureThreshold = 5;
+    @Builder.Default
+    long openMillis = 30_000L;
+    @Builder.Default
+    int maxConcurrentPerBroker = 50;
+    @Builder.Default
+    int maxConcurrentPerRealm = 20;
+    /**
+     * Messages per second of the realm on each node, 0 for no cap
+     */
+    int maxPerSecondPerRealm;
+}
@@ -0,0 +1,206 @@
+package br.coto.keycloak.otp.brokers.resilience;
+
+import br.coto.keycloak.otp.brokers.BrokerHttpException;
+import br.coto.keycloak.otp.brokers.DeliveryTracking;
+import br.coto.keycloak.otp.brokers.IBrokerService;
+import br.coto.keycloak.otp.brokers.stats.BrokerMonitor;
+import br.coto.keycloak.otp.metrics.SmsMetrics;
+import br.coto.keycloak.otp.tracing.SmsSpan;
+import br.coto.keycloak.otp.tracing.SmsTracing;
+import io.opentelemetry.context.Context;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/**
+ * Guards a broker with its circuit breaker, the broker bulkhead and the {@link RealmQuota} of the realm. The circuit
+ * breaker only counts the failures {@link BrokerFailures} blames on the broker.
+ * Requests that cannot be sent, or are meant for a paused broker, fail fast with a {@link BrokerUnavailableException}.
+ * The {@link BrokerMonitor} of the broker in the realm follows each request for the admin stats endpoint.
+ * Every call, sent or rejected, is recorded in {@link SmsMetrics} and traced by {@link SmsTracing}, so all broker
+ * implementations are measured alike.
+ */
+public class ResilientBrokerService implements IBrokerService {
+
+    private final String realm;
+    private final String name;
+    private final IBrokerService delegate;
+    private final CircuitBreaker circuitBreaker;
+    private final Bulkhead brokerBulkhead;
+    private final RealmQuota realmQuota;
+    private final BrokerMonitor monitor;
+
+    public ResilientBrokerService(String realm, String name, IBrokerService delegate, CircuitBreaker circuitBreaker,
+                                  Bulkhead brokerBulkhead, RealmQuota realmQuota, BrokerMonitor monitor) {
+        this.realm = realm;
+        this.name = name;
+        this.delegate = delegate;
+        this.circuitBreaker = circuitBreaker;
+        this.brokerBulkhead = brokerBulkhead;
+        this.realmQuota = realmQuota;
+        this.monitor = monitor;
+    }
+
+    @Override
+    public void send(String to, String message) throws Exception {
+        send(to, message, null);
+    }
+
+    @Override
+    public void send(String to, String message, DeliveryTracking tracking) throws Exception {
+        long start = System.nanoTime();
+        Exception failure = null;
+        try (SmsSpan span = SmsTracing.start(ResilientBrokerService.class, "send").realm(realm).broker(name)) {
+            try {
+                acquire();
+                Exception sendFailure = null;
+                try {
+                    delegate.send(to, message, tracking);
+                    circuitBreaker.onSuccess();
+                } catch (Exception e) {
+                    onFailure(e);
+                    sendFailure = e;
+                    throw e;
+                } finally {
+                    release(System.nanoTime() - start, sendFailure);
+                }
+            } catch (Exception e) {
+                failure = e;
+                throw e;
+            } finally {
+                SmsMetrics.brokerSend(realm, name, System.nanoTime() - start, status(failure));
+                traced(span, failure);
+            }
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> sendAsync(String to, String message, Executor executor) {
+        return sendAsync(to, message, null, executor);
+    }
+
+    /**
+     * Takes the permits on an {@code executor} thread and hands the message to the broker with a direct executor:
+     * a blocking broker sends on that thread, a non-blocking one returns right away and frees it. The permits are
+     * held until the send completes. The trace context of the caller follows the message to the executor thread.
+     */
+    @Override
+    public CompletableFuture<Void> sendAsync(String to, String message, DeliveryTracking tracking, Executor executor) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        executor.execute(Context.current().wrap(() -> {
+            long start = System.nanoTime();
+            SmsSpan span = SmsTracing.start(ResilientBrokerService.class, "send").realm(realm).broker(name);
+            CompletableFuture<Void> sent;
+            try {
+                acquire();
+            } catch (BrokerUnavailableException e) {
+                SmsMetrics.brokerSend(realm, name, System.nanoTime() - start, status(e));
+                traced(span, e).close();
+                result.completeExceptionally(e);
+                return;
+            }
+            try {
+                sent = delegate.sendAsync(to, message, tracking, Runnable::run);
+            } catch (RuntimeException e) {
+                sent = CompletableFuture.failedFuture(e);
+            } finally {
+                span.exit();
+            }
+            sent.whenComplete((value, error) -> {
+                Throwable failure = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                if (failure == null) {
+                    circuitBreaker.onSuccess();
+                } else {
+                    onFailure(failure);
+                }
+                release(System.nanoTime() - start, failure);
+                SmsMetrics.brokerSend(realm, name, System.nanoTime() - start, status(failure));
+                traced(span, failure).close();
+                if (failure == null) {
+                    result.complete(null);
+                } else {
+                    result.completeExceptionally(failure);
+                }
+            });
+        }));
+        return result;
+    }
+
+    /**
+     * Takes the permits of a request, which is then counted in flight by the monitor until {@link #release(long, Throwable)}.
+     */
+    private void acquire() throws BrokerUnavailableException {
+        if (monitor.isPaused()) {
+            throw reject("paused", "[COTO] Broker " + name + " is paused");
+        }
+        if (!brokerBulkhead.tryAcquire()) {
+            throw reject("broker_concurrency", "[COTO] Too many concurrent requests to broker " + name);
+        }
+        if (!realmQuota.tryAcquire()) {
+            brokerBulkhead.release();
+            throw reject("realm_concurrency", "[COTO] Too many concurrent SMS requests in realm");
+        }
+        if (!realmQuota.tryAcquireRate()) {
+            releasePermits();
+            throw reject("realm_rate", "[COTO] SMS rate cap of realm reached");
+        }
+        if (!circuitBreaker.tryAcquirePermission()) {
+            releasePermits();
+            throw reject("circuit_open", "[COTO] Circuit breaker open for broker " + name);
+        }
+        monitor.started();
+    }
+
+    /**
+     * Only failures of the broker count against its circuit breaker; a message it refused, such as a 4xx for an
+     * unknown number, shows the broker is up.
+     */
+    private void onFailure(Throwable failure) {
+        if (BrokerFailures.isBrokerFault(failure)) {
+            circuitBreaker.onFailure();
+        } else {
+            circuitBreaker.onSuccess();
+        }
+    }
+
+    private BrokerUnavailableException reject(String reason, String message) {
+        monitor.rejected();
+        SmsMetrics.rejected(realm, reason);
+        return new BrokerUnavailableException(message);
+    }
+
+    private void release(long durationNanos, Throwable failure) {
+        releasePermits();
+        monitor.finished(durationNanos, failure);
+    }
+
+    private void releasePermits() {
+        realmQuota.release();
+        brokerBulkhead.release();
+    }
+
+    private static SmsSpan traced(SmsSpan span, Throwable failure) {
+        span.attribute(SmsTracing.SEND_STATUS, status(failure));
+        if (failure instanceof BrokerHttpException) {
+            span.attribute(SmsTracing.HTTP_STATUS, (long) ((BrokerHttpException) failure).getStatusCode());
+        }
+        if (failure != null) {
+            span.error(failure);
+        }
+        return span;
+    }
+
+    private static String status(Throwable failure) {
+        if (failure == null) {
+            return "2xx";
+        }
+        if (failure instanceof BrokerUnavailableException) {
+            return "rejected";
+        }
+        if (failure instanceof BrokerHttpException) {
+            return SmsMetrics.statusBucket(((BrokerHttpException) failure).getStatusCode());
+        }
+        return "error";
+    }
+}
@@ -0,0 +1,64 @@
+package br.coto.keycloak.otp.brokers.routing;
+
+import java.util.Arrays;
+
+/**
+ * Rolling window of the most recent sends of one broker, used by the {@link BrokerRouter} to rank brokers.
+ */
+public class BrokerHealth {
+
+    private static final int WINDOW_SIZE = 128;
+
+    private final long[] latencies = new long[WINDOW_SIZE];
+    private final boolean[] failures = new boolean[WINDOW_SIZE];
+    private int next;
+    private int count;
+
+    public synchronized void record(long latencyMillis, boolean failed) {
+        latencies[next] = latencyMillis;
+        failures[next] = failed;
+        next = (next + 1) % WINDOW_SIZE;
+        count = Math.min(count + 1, WINDOW_SIZE);
+    }
+
+    public synchronized int getSampleCount() {
+        return count;
+    }
+
+    public synchronized double getErrorRate() {
+        if (count == 0) {
+            return 0d;
+        }
+        int failed = 0;
+        for (int i = 0; i < count; i++) {
+            if (failures[i]) {
+                failed++;
+            }
+        }
+        return (double) failed / count;
+    }
+
+    public long getP50() {
+        return percentile(0.50);
+    }
+
+    public long getP95() {
+        return percentile(0.95);
+    }
+
+    /**
+     * Returns the latency percentile in milliseconds, or {@code -1} if no send was recorded yet.
+     */
+    public long percentile(double percentile) {
+        long[] snapshot;
+        synchronized (this) {
+            if (count == 0) {
+                return -1;
+            }
+            snapshot = Arrays.copyOf(latencies, count);
+        }
+        Arrays.sort(snapshot);
+        int index = (int) Math.ceil(percentile * snapshot.length) - 1;
+        return snapshot[Math.max(0, Math.min(index, snapshot.length - 1))];
+    }
+}
@@ -0,0 +1,261 @@
+package br.coto.keycloak.otp.brokers.routing;
+
+import br.coto.keycloak.otp.brokers.DeliveryTracking;
+import br.coto.keycloak.otp.brokers.IBrokerService;
+import br.coto.keycloak.otp.brokers.resilience.BrokerFailures;
+import br.coto.keycloak.otp.brokers.resilience.BrokerUnavailableException;
+import io.opentelemetry.context.Context;
+import lombok.Value;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends through a list of brokers, picking the healthiest one first and failing over to the next ones.
+ * <p>
+ * Brokers whose recent error rate is above {@value #UNHEALTHY_ERROR_RATE} are moved to the end of the list.
+ * With the {@link Strategy#LATENCY} strategy the remaining brokers are ordered by their p95 latency, otherwise
+ * the configured order is kept. When hedging is enabled, the second broker receives the same message as soon as
+ * the first one exceeds its own p95 latency, and the first successful answer wins.
+ * <p>
+ * Only failures {@link BrokerFailures#isRetryable retryable} on another broker fail over. A message the broker
+ * refused, such as a 4xx for an unknown number, would be refused everywhere, so it is returned at once.
+ */
+@Slf4j
+public class BrokerRouter implements IBrokerService {
+
+    public enum Strategy {
+        ORDERED,
+        LATENCY
+    }
+
+    private static final double UNHEALTHY_ERROR_RATE = 0.5;
+    private static final int MIN_SAMPLES = 10;
+    private static final long DEFAULT_HEDGE_DELAY_MILLIS = 2000;
+
+    private final List<Route> routes;
+    private final Strategy strategy;
+    private final boolean hedge;
+    private final Executor executor;
+
+    public BrokerRouter(List<Route> routes, Strategy strategy, boolean hedge, Executor executor) {
+        this.routes = List.copyOf(routes);
+        this.strategy = strategy;
+        this.hedge = hedge;
+        this.executor = executor;
+    }
+
+    @Override
+    public void send(String to, String message) throws Exception {
+        send(to, message, null);
+    }
+
+    @Override
+    public void send(String to, String message, DeliveryTracking tracking) throws Exception {
+        List<Route> ranked = rank();
+        if (hedge && ranked.size() > 1) {
+            sendHedged(ranked, to, message, tracking);
+            return;
+        }
+
+        Exception lastError = null;
+        for (Route route : ranked) {
+            try {
+                sendTimed(route, to, message, tracking);
+                return;
+            } catch (Exception e) {
+                if (!failOver(route, e)) {
+                    throw e;
+                }
+                lastError = e;
+            }
+        }
+        throw lastError;
+    }
+
+    @Override
+    public CompletableFuture<Void> sendAsync(String to, String message, Executor executor) {
+        return sendAsync(to, message, null, executor);
+    }
+
+    /**
+     * Fails over to the next broker when a send completes with an error, without holding a thread in between.
+     * Hedged sends keep the blocking path, which needs a thread to wait for the hedge delay.
+     */
+    @Override
+    public CompletableFuture<Void> sendAsync(String to, String message, DeliveryTracking tracking, Executor executor) {
+        List<Route> ranked = rank();
+        if (hedge && ranked.size() > 1) {
+            return CompletableFuture.runAsync(() -> {
+                try {
+                    send(to, message, tracking);
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }, executor);
+        }
+
+        // Failovers start on the thread that completed the failed send, in the trace context of the caller
+        Context context = Context.current();
+        CompletableFuture<Void> result = sendTimedAsync(ranked.get(0), to, message, tracking, executor);
+        for (int i = 1; i < ranked.size(); i++) {
+            Route failed = ranked.get(i - 1);
+            Route next = ranked.get(i);
+            result = result.exceptionallyCompose(context.wrapFunction(error -> {
+                if (!failOver(failed, unwrap(error))) {
+                    return CompletableFuture.failedFuture(error);
+                }
+                return sendTimedAsync(next, to, message, tracking, executor);
+            }));
+        }
+        return result;
+    }
+
+    List<Route> rank() {
+        List<Route> healthy = new ArrayList<>(routes.size());
+        List<Route> unhealthy = new ArrayList<>(0);
+        for (Route route : routes) {
+            BrokerHealth health = route.getHealth();
+            if (health.getSampleCount() >= MIN_SAMPLES && health.getErrorRate() >= UNHEALTHY_ERROR_RATE) {
+                unhealthy.add(route);
+            } else {
+                healthy.add(route);
+            }
+        }
+        if (strategy == Strategy.LATENCY) {
+            healthy.sort(Comparator.comparingLong(route -> route.getHealth().getP95()));
+        }
+        unhealthy.sort(Comparator.comparingDouble(route -> route.getHealth().getErrorRate()));
+        healthy.addAll(unhealthy);
+        return healthy;
+    }
+
+    private void sendHedged(List<Route> ranked, String to, String message, DeliveryTracking tracking) throws Exception {
+        Route primary = ranked.get(0);
+        CompletableFuture<Void> first = sendTimedAsync(primary, to, message, tracking, executor);
+        long delay = hedgeDelay(primary);
+        try {
+            first.get(delay, TimeUnit.MILLISECONDS);
+            return;
+        } catch (TimeoutException e) {
+            log.info("[COTO] Broker {} exceeded {} ms, hedging with {}", primary.getName(), delay, ranked.get(1).getName());
+        } catch (ExecutionException e) {
+            Exception error = unwrap(e.getCause());
+            if (!BrokerFailures.isRetryable(error)) {
+                throw error;
+            }
+            log.warn("[COTO] Broker {} failed, trying {}: {}", primary.getName(), ranked.get(1).getName(), error.getMessage());
+        }
+
+        CompletableFuture<Void> second = sendTimedAsync(ranked.get(1), to, message, tracking, executor);
+        Exception lastError;
+        try {
+            firstSuccess(first, second).get();
+            return;
+        } catch (ExecutionException e) {
+            lastError = unwrap(e.getCause());
+            if (!BrokerFailures.isRetryable(lastError)) {
+                throw lastError;
+            }
+        }
+
+        for (Route route : ranked.subList(2, ranked.size())) {
+            try {
+                sendTimed(route, to, message, tracking);
+                return;
+            } catch (Exception e) {
+                if (!failOver(route, e)) {
+                    throw e;
+                }
+                lastError = e;
+            }
+        }
+        throw lastError;
+    }
+
+    /**
+     * Whether the next broker should be tried after {@code error}; another broker would not fix a refused message.
+     */
+    private static boolean failOver(Route route, Throwable error) {
+        if (!BrokerFailures.isRetryable(error)) {
+            return false;
+        }
+        log.warn("[COTO] Broker {} failed, trying next broker: {}", route.getName(), error.getMessage());
+        return true;
+    }
+
+    private long hedgeDelay(Route route) {
+        BrokerHealth health = route.getHealth();
+        return health.getSampleCount() >= MIN_SAMPLES ? Math.max(1, health.getP95()) : DEFAULT_HEDGE_DELAY_MILLIS;
+    }
+
+    private void sendTimed(Route route, String to, String message, DeliveryTracking tracking) throws Exception {
+        long start = System.nanoTime();
+        try {
+            route.getService().send(to, message, tracking);
+            record(route, start, null);
+        } catch (Exception e) {
+            record(route, start, e);
+            throw e;
+        }
+    }
+
+    private CompletableFuture<Void> sendTimedAsync(Route route, String to, String message, DeliveryTracking tracking,
+                                                   Executor executor) {
+        long start = System.nanoTime();
+        return route.getService().sendAsync(to, message, tracking, executor)
+                .whenComplete((result, error) -> record(route, start, error));
+    }
+
+    /**
+     * Adds a send to the health of the route. Sends the broker's own circuit breaker or bulkhead rejected never
+     * reached the broker, so their near zero latency would only skew the ranking. A message the broker refused
+     * counts as an answer, not as an error.
+     */
+    private static void record(Route route, long start, Throwable error) {
+        if (error != null && unwrap(error) instanceof BrokerUnavailableException) {
+            return;
+        }
+        route.getHealth().record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                error != null && BrokerFailures.isBrokerFault(error));
+    }
+
+    private static CompletableFuture<Void> firstSuccess(CompletableFuture<Void> first, CompletableFuture<Void> second) {
+        CompletableFuture<Void> result = new CompletableFuture<>();
+        AtomicInteger failures = new AtomicInteger();
+        for (CompletableFuture<Void> future : List.of(first, second)) {
+            future.whenComplete((value, error) -> {
+                if (error == null) {
+                    result.complete(null);
+                } else if (failures.incrementAndGet() == 2) {
+                    result.completeExceptionally(error);
+                }
+            });
+        }
+        return result;
+    }
+
+    private static Exception unwrap(Throwable error) {
+        Throwable cause = error;
+        while (cause instanceof CompletionException && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        return cause instanceof Exception ? (Exception) cause : new Exception(cause);
+    }
+
+    @Value
+    public static class Route {
+        String name;
+        IBrokerService service;
+        BrokerHealth health;
+    }
+}
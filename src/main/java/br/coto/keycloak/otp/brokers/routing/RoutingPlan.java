@@ -0,0 +1,91 @@
+package br.coto.keycloak.otp.brokers.routing;
+
+import br.coto.keycloak.otp.SmsAuthenticatorFactory;
+import br.coto.keycloak.otp.brokers.BrokerConfig;
+import br.coto.keycloak.otp.brokers.BrokerTarget;
+import br.coto.keycloak.otp.brokers.resilience.ResilienceSettings;
+import br.coto.keycloak.otp.helpers.SMSFields;
+import lombok.Builder;
+import lombok.Singular;
+import lombok.Value;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The brokers configured for one authenticator, in order of preference, and how to route between them.
+ */
+@Builder
+@Value
+public class RoutingPlan {
+    @Singular
+    List<BrokerTarget> targets;
+    @Builder.Default
+    BrokerRouter.Strategy strategy = BrokerRouter.Strategy.ORDERED;
+    boolean hedge;
+    @Builder.Default
+    ResilienceSettings resilience = ResilienceSettings.builder().build();
+
+    /**
+     * Builds the plan from an authenticator config. In simulation mode the plan only has the simulate broker.
+     */
+    public static RoutingPlan fromConfig(Map<String, String> config) {
+        String broker = config.get(SMSFields.BROKER_LIST.getValue());
+        String fallbackBroker = config.get(SMSFields.FALLBACK_BROKER.getValue());
+
+        if (Boolean.parseBoolean(config.getOrDefault(SMSFields.SIMULATION_MODE.getValue(), "false"))) {
+            broker = "simulate";
+            fallbackBroker = null;
+        }
+
+        int batchMaxSize = Integer.parseInt(config.getOrDefault(SMSFields.BATCH_MAX_SIZE.getValue(), "1"));
+        long batchWindowMillis = Long.parseLong(config.getOrDefault(SMSFields.BATCH_WINDOW_MILLIS.getValue(), "5"));
+        BrokerConfig brokerConfig = BrokerConfig.builder()
+                                        .shortCode(config.get(SMSFields.BROKER_SHORT_CODE.getValue()))
+                                        .key(config.get(SMSFields.BROKER_KEY.getValue()))
+                                        .secret(config.get(SMSFields.BROKER_SECRET.getValue()))
+                                        .baseUrl(emptyToNull(config.get(SMSFields.BROKER_URL.getValue())))
+                                        .batchMaxSize(batchMaxSize)
+                                        .batchWindowMillis(batchWindowMillis)
+                                        .build();
+
+        RoutingPlanBuilder plan = RoutingPlan.builder()
+                .target(new BrokerTarget(broker, brokerConfig))
+                .strategy(BrokerRouter.Strategy.valueOf(config.getOrDefault(SMSFields.ROUTING_STRATEGY.getValue(), BrokerRouter.Strategy.ORDERED.name())))
+                .hedge(Boolean.parseBoolean(config.getOrDefault(SMSFields.HEDGE.getValue(), "false")))
+                .resilience(ResilienceSettings.builder()
+                        .failureThreshold(Integer.parseInt(config.getOrDefault(SMSFields.CIRCUIT_FAILURE_THRESHOLD.getValue(), "5")))
+                        .openMillis(Integer.parseInt(config.getOrDefault(SMSFields.CIRCUIT_OPEN_SECONDS.getValue(), "30")) * 1000L)
+                        .maxConcurrentPerBroker(Integer.parseInt(config.getOrDefault(SMSFields.MAX_CONCURRENT_PER_BROKER.getValue(), "50")))
+                        .maxConcurrentPerRealm(Integer.parseInt(config.getOrDefault(SMSFields.MAX_CONCURRENT_PER_REALM.getValue(), "20")))
+                        .maxPerSecondPerRealm(Integer.parseInt(config.getOrDefault(SMSFields.MAX_PER_SECOND_PER_REALM.getValue(), "0")))
+                        .build());
+
+        if (fallbackBroker != null && !fallbackBroker.isEmpty() && !SmsAuthenticatorFactory.NO_FALLBACK.equals(fallbackBroker)) {
+            plan.target(new BrokerTarget(fallbackBroker, BrokerConfig.builder()
+                                        .shortCode(config.get(SMSFields.FALLBACK_BROKER_SHORT_CODE.getValue()))
+                                        .key(config.get(SMSFields.FALLBACK_BROKER_KEY.getValue()))
+                                        .secret(config.get(SMSFields.FALLBACK_BROKER_SECRET.getValue()))
+                                        .baseUrl(emptyToNull(config.get(SMSFields.FALLBACK_BROKER_URL.getValue())))
+                                        .batchMaxSize(batchMaxSize)
+                                        .batchWindowMillis(batchWindowMillis)
+                                        .build()));
+        }
+        return plan.build();
+    }
+
+    /**
+     * The same plan restricted to one of its brokers, for sends that must go through that broker only.
+     */
+    public RoutingPlan only(BrokerTarget target) {
+        return RoutingPlan.builder()
+                .target(target)
+                .strategy(strategy)
+                .resilience(resilience)
+                .build();
+    }
+
+    private static String emptyToNull(String value) {
+        return value == null || value.trim().isEmpty() ? null : value.trim();
+    }
+}
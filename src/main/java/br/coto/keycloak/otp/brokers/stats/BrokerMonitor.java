@@ -0,0 +1,125 @@
+package br.coto.keycloak.otp.brokers.stats;
+
+import br.coto.keycloak.otp.brokers.BrokerHttpException;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Live state of one broker for one realm on this node: requests in flight, outcome counters, recent latency, the
+ * last errors and whether the broker is paused.
+ * <p>
+ * Updated on the send path with atomic counters only, and read by the admin stats endpoint without stopping the
+ * senders. A paused broker refuses new requests, so routing moves on to the next broker of the config, while the
+ * requests in flight complete.
+ */
+public class BrokerMonitor {
+
+    private static final int LAST_ERRORS = 5;
+    private static final int MAX_ERROR_LENGTH = 200;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LatencyRecorder latency = new LatencyRecorder();
+    private final AtomicReferenceArray<ErrorSample> lastErrors = new AtomicReferenceArray<>(LAST_ERRORS);
+    private final AtomicLong errorCount = new AtomicLong();
+    private volatile boolean paused;
+
+    public void started() {
+        inFlight.incrementAndGet();
+    }
+
+    /**
+     * Records the end of a request counted by {@link #started()}.
+     *
+     * @param failure the error of the broker, or {@code null} when the message was accepted
+     */
+    public void finished(long durationNanos, Throwable failure) {
+        inFlight.decrementAndGet();
+        latency.record(durationNanos);
+        if (failure == null) {
+            sent.increment();
+            return;
+        }
+        failed.increment();
+        Integer status = failure instanceof BrokerHttpException ? ((BrokerHttpException) failure).getStatusCode() : null;
+        String message = failure.getMessage() != null && failure.getMessage().length() > MAX_ERROR_LENGTH
+                ? failure.getMessage().substring(0, MAX_ERROR_LENGTH) : failure.getMessage();
+        long slot = errorCount.getAndIncrement() % LAST_ERRORS;
+        lastErrors.set((int) slot, new ErrorSample(System.currentTimeMillis(), failure.getClass().getSimpleName(), status, message));
+    }
+
+    /**
+     * Records a request refused before reaching the broker.
+     */
+    public void rejected() {
+        rejected.increment();
+    }
+
+    public boolean isPaused() {
+        return paused;
+    }
+
+    public void setPaused(boolean paused) {
+        this.paused = paused;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("paused", paused);
+        snapshot.put("inFlight", inFlight.get());
+        snapshot.put("sent", sent.sum());
+        snapshot.put("failed", failed.sum());
+        snapshot.put("rejected", rejected.sum());
+        snapshot.put("latencyMillis", latency.snapshot());
+        snapshot.put("lastErrors", lastErrors());
+        return snapshot;
+    }
+
+    /**
+     * Last errors, most recent first
+     */
+    private List<Map<String, Object>> lastErrors() {
+        List<Map<String, Object>> errors = new ArrayList<>(LAST_ERRORS);
+        long last = errorCount.get();
+        for (long i = last - 1; i >= Math.max(0, last - LAST_ERRORS); i--) {
+            ErrorSample sample = lastErrors.get((int) (i % LAST_ERRORS));
+            if (sample != null) {
+                Map<String, Object> error = new LinkedHashMap<>();
+                error.put("at", Instant.ofEpochMilli(sample.at).toString());
+                error.put("type", sample.type);
+                error.put("httpStatus", sample.httpStatus);
+                error.put("message", sample.message);
+                errors.add(error);
+            }
+        }
+        return errors;
+    }
+
+    private static class ErrorSample {
+        private final long at;
+        private final String type;
+        private final Integer httpStatus;
+        private final String message;
+
+        private ErrorSample(long at, String type, Integer httpStatus, String message) {
+            this.at = at;
+            this.type = type;
+            this.httpStatus = httpStatus;
+            this.message = message;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package br.coto.keycloak.otp.brokers.stats;
+
+import br.coto.keycloak.otp.brokers.BrokerRegistry;
+import br.coto.keycloak.otp.dispatch.SmsDispatcher;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import lombok.extern.slf4j.Slf4j;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.resources.admin.AdminEventBuilder;
+import org.keycloak.services.resources.admin.fgap.AdminPermissionEvaluator;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Admin endpoints of the live broker state, under {@code /admin/realms/{realm}/sms-otp/brokers}. They report and
+ * change the state of the node that receives the request. Reading the stats requires the permission to view the
+ * realm, pausing, resuming and draining a broker the permission to manage it.
+ */
+@Slf4j
+public class BrokerStatsResource {
+
+    private final KeycloakSession session;
+    private final RealmModel realm;
+    private final AdminPermissionEvaluator auth;
+    private final AdminEventBuilder adminEvent;
+    private final BrokerRegistry brokerRegistry;
+    private final SmsDispatcher dispatcher;
+
+    public BrokerStatsResource(KeycloakSession session, RealmModel realm, AdminPermissionEvaluator auth,
+                               AdminEventBuilder adminEvent, BrokerRegistry brokerRegistry, SmsDispatcher dispatcher) {
+        this.session = session;
+        this.realm = realm;
+        this.auth = auth;
+        this.adminEvent = adminEvent;
+        this.brokerRegistry = brokerRegistry;
+        this.dispatcher = dispatcher;
+    }
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, Object> stats() {
+        auth.realm().requireViewRealm();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("realm", realm.getName());
+        stats.put("inFlight", brokerRegistry.realmInFlight(realm.getId()));
+        stats.put("dispatch", dispatcher.stats(realm.getId()));
+        stats.put("brokers", brokerRegistry.stats(realm.getId()));
+        return stats;
+    }
+
+    /**
+     * Refuses new requests of the realm to the broker, so they go to the next broker of each config. Requests in
+     * flight complete.
+     */
+    @POST
+    @Path("{broker}/pause")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, Object> pause(@PathParam("broker") String broker) {
+        auth.realm().requireManageRealm();
+        setPaused(broker, true);
+        return stats();
+    }
+
+    @POST
+    @Path("{broker}/resume")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, Object> resume(@PathParam("broker") String broker) {
+        auth.realm().requireManageRealm();
+        setPaused(broker, false);
+        return stats();
+    }
+
+    /**
+     * Pauses the broker without waiting for its requests in flight, which would hold a request thread. The caller
+     * polls the stats until the broker shows nothing in flight.
+     *
+     * @return 200 when nothing is in flight, otherwise 202 with the number of requests still running
+     */
+    @POST
+    @Path("{broker}/drain")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response drain(@PathParam("broker") String broker) {
+        auth.realm().requireManageRealm();
+        setPaused(broker, true);
+        int inFlight = brokerRegistry.inFlight(realm.getId(), broker);
+        Map<String, Object> stats = stats();
+        stats.put("draining", Map.of("broker", broker.toLowerCase(Locale.ROOT), "inFlight", inFlight));
+        if (inFlight > 0) {
+            log.info("[COTO] Broker {} of realm {} draining, {} requests in flight", broker, realm.getName(), inFlight);
+            return Response.accepted(stats).build();
+        }
+        log.info("[COTO] Broker {} of realm {} drained", broker, realm.getName());
+        return Response.ok(stats).build();
+    }
+
+    private void setPaused(String broker, boolean paused) {
+        if (brokerRegistry.setPaused(realm.getId(), broker, paused) == 0) {
+            throw new NotFoundException("Broker " + broker + " is not used by the realm on this node");
+        }
+        log.info("[COTO] Broker {} of realm {} {}", broker, realm.getName(), paused ? "paused" : "resumed");
+        adminEvent.operation(OperationType.ACTION).resource(ResourceType.CUSTOM)
+                .resourcePath(session.getContext().getUri()).success();
+    }
+}
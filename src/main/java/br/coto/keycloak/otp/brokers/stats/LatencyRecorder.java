@@ -0,0 +1,137 @@
+package br.coto.keycloak.otp.brokers.stats;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histogram of the last minute, recorded without locks.
+ * <p>
+ * Like HdrHistogram, values are counted in log-linear buckets: {@value #SUB_BUCKETS} buckets per power of two,
+ * so a percentile is reported within about 3% of the true value, from a microsecond to several minutes, in a
+ * fixed array. The minute is split in {@value #SLOTS} slots of ten seconds; the first sample of a slot clears
+ * the counts it held a minute earlier. Recording is a few atomic increments; reading merges the slots without
+ * stopping the writers, so a snapshot taken during a burst may miss the samples being written.
+ */
+public class LatencyRecorder {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /**
+     * Largest power of two recorded, in microseconds: longer calls are counted as about 4.5 minutes
+     */
+    private static final int MAX_MAGNITUDE = 27;
+    private static final int BUCKETS = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+    private static final long MAX_VALUE = (1L << (MAX_MAGNITUDE + 1)) - 1;
+
+    private static final int SLOTS = 6;
+    private static final long SLOT_MILLIS = 10_000;
+
+    private final Slot[] slots = new Slot[SLOTS];
+
+    public LatencyRecorder() {
+        for (int i = 0; i < SLOTS; i++) {
+            slots[i] = new Slot();
+        }
+    }
+
+    public void record(long durationNanos) {
+        long micros = Math.min(MAX_VALUE, Math.max(0, TimeUnit.NANOSECONDS.toMicros(durationNanos)));
+        long epoch = System.currentTimeMillis() / SLOT_MILLIS;
+        Slot slot = slots[(int) (epoch % SLOTS)];
+        long slotEpoch = slot.epoch.get();
+        if (slotEpoch != epoch && slot.epoch.compareAndSet(slotEpoch, epoch)) {
+            slot.clear();
+        }
+        slot.counts.incrementAndGet(index(micros));
+        slot.max.accumulateAndGet(micros, Math::max);
+    }
+
+    /**
+     * Count, median, p90, p99 and maximum of the last minute, in milliseconds.
+     */
+    public Map<String, Object> snapshot() {
+        long[] merged = new long[BUCKETS];
+        long count = 0;
+        long max = 0;
+        long oldest = System.currentTimeMillis() / SLOT_MILLIS - SLOTS + 1;
+        for (Slot slot : slots) {
+            if (slot.epoch.get() < oldest) {
+                continue;
+            }
+            for (int i = 0; i < BUCKETS; i++) {
+                long bucketCount = slot.counts.get(i);
+                merged[i] += bucketCount;
+                count += bucketCount;
+            }
+            max = Math.max(max, slot.max.get());
+        }
+
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("count", count);
+        snapshot.put("p50", millis(percentile(merged, count, 0.50)));
+        snapshot.put("p90", millis(percentile(merged, count, 0.90)));
+        snapshot.put("p99", millis(percentile(merged, count, 0.99)));
+        snapshot.put("max", millis(max));
+        return snapshot;
+    }
+
+    private static long percentile(long[] counts, long total, double quantile) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(total * quantile));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return upperBound(i);
+            }
+        }
+        return MAX_VALUE;
+    }
+
+    /**
+     * Bucket of a value: values below {@value #SUB_BUCKETS} have their own bucket, larger ones share a bucket with
+     * the values that have the same power of two and the same {@value #SUB_BUCKET_BITS} leading bits.
+     */
+    static int index(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        int shift = magnitude - SUB_BUCKET_BITS;
+        return (magnitude - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + (int) ((value >>> shift) - SUB_BUCKETS);
+    }
+
+    /**
+     * Largest value counted in a bucket
+     */
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long leading = index % SUB_BUCKETS + SUB_BUCKETS;
+        return ((leading + 1) << shift) - 1;
+    }
+
+    private static double millis(long micros) {
+        return Math.round(micros / 100.0) / 10.0;
+    }
+
+    private static class Slot {
+        private final AtomicLong epoch = new AtomicLong(-1);
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong max = new AtomicLong();
+
+        private void clear() {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts.set(i, 0);
+            }
+            max.set(0);
+        }
+    }
+}
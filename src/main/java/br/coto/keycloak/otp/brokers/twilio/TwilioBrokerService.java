@@ -0,0 +1,264 @@
+package br.coto.keycloak.otp.brokers.twilio;
+
+import br.coto.keycloak.otp.brokers.BrokerConfig;
+import br.coto.keycloak.otp.brokers.BrokerHttpException;
+import br.coto.keycloak.otp.brokers.DeliveryTracking;
+import br.coto.keycloak.otp.brokers.IBrokerService;
+import br.coto.keycloak.otp.helpers.PhoneNumbers;
+import com.fasterxml.jackson.databind.JsonNode;
+import lombok.extern.slf4j.Slf4j;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sends SMS through the Twilio Programmable Messaging API ({@code POST /Accounts/{AccountSid}/Messages.json}).
+ * <p>
+ * The broker key is the Account SID and the secret its Auth Token. The short code is either the sender number or
+ * a Messaging Service SID ({@code MG...}), in which case Twilio picks the sender from the number pool of the service.
+ * <p>
+ * Services of the same Twilio account share one HTTP client, so connections to the API are pooled across the
+ * configurations of a tenant while other accounts keep their own connections and threads. Sends are fully
+ * asynchronous: no thread waits for the response. Bodies of successful responses are discarded unread; only error
+ * bodies are parsed. Tracked messages carry a {@code StatusCallback} URL, which Twilio calls back on every status
+ * change of the message.
+ */
+@Slf4j
+public class TwilioBrokerService implements IBrokerService {
+
+    private static final String TWILIO_BASE_URL = "https://api.twilio.com/2010-04-01";
+    private static final String MESSAGING_SERVICE_PREFIX = "MG";
+
+    private static final HttpResponse.BodyHandler<String> DISCARD_ON_SUCCESS = responseInfo ->
+            responseInfo.statusCode() >= 200 && responseInfo.statusCode() < 300
+                    ? HttpResponse.BodySubscribers.replacing(null)
+                    : HttpResponse.BodySubscribers.ofString(StandardCharsets.UTF_8);
+
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+    private static final Map<String, SharedClient> SHARED_CLIENTS = new HashMap<>();
+
+    private final String accountSid;
+    private final String authHeader;
+    private final URI messagesUri;
+    private final URI accountUri;
+    private final String senderParameter;
+    private final SharedClient sharedClient;
+    private final HttpClient httpClient;
+    private boolean closed;
+
+    public TwilioBrokerService(BrokerConfig config) {
+        this.validate(config);
+        this.accountSid = config.getKey();
+        this.authHeader = "Basic " + Base64.getEncoder()
+                .encodeToString((config.getKey() + ":" + config.getSecret()).getBytes(StandardCharsets.UTF_8));
+        String baseUrl = config.getBaseUrl() != null ? config.getBaseUrl().replaceAll("/+$", "") : TWILIO_BASE_URL;
+        this.messagesUri = URI.create(baseUrl + "/Accounts/" + encode(config.getKey()) + "/Messages.json");
+        this.accountUri = URI.create(baseUrl + "/Accounts/" + encode(config.getKey()) + ".json");
+        // Encoded once, every message only encodes its own number and text
+        this.senderParameter = (config.getShortCode().startsWith(MESSAGING_SERVICE_PREFIX) ? "MessagingServiceSid=" : "From=")
+                + encode(config.getShortCode());
+        this.sharedClient = acquireClient(accountSid);
+        this.httpClient = sharedClient.client;
+    }
+
+    private void validate(BrokerConfig config) {
+        if (config == null) {
+            throw new IllegalArgumentException("[COTO] TwilioBrokerService: config cannot be null");
+        }
+        if (config.getKey() == null || config.getKey().isEmpty()) {
+            throw new IllegalArgumentException("[COTO] TwilioBrokerService: account SID cannot be null or empty");
+        }
+        if (config.getSecret() == null || config.getSecret().isEmpty()) {
+            throw new IllegalArgumentException("[COTO] TwilioBrokerService: auth token cannot be null or empty");
+        }
+        if (config.getShortCode() == null || config.getShortCode().isEmpty()) {
+            throw new IllegalArgumentException("[COTO] TwilioBrokerService: sender number or messaging service SID cannot be null or empty");
+        }
+    }
+
+    @Override
+    public void send(String to, String message) throws Exception {
+        send(to, message, null);
+    }
+
+    @Override
+    public void send(String to, String message, DeliveryTracking tracking) throws Exception {
+        try {
+            sendAsync(to, message, tracking, Runnable::run).get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+        }
+    }
+
+    @Override
+    public CompletableFuture<Void> sendAsync(String to, String message, Executor executor) {
+        return sendAsync(to, message, null, executor);
+    }
+
+    /**
+     * Sends without using {@code executor}: the request is written and its response handled by the HTTP client.
+     */
+    @Override
+    public CompletableFuture<Void> sendAsync(String to, String message, DeliveryTracking tracking, Executor executor) {
+        log.debug("[COTO] Send using Twilio: Data: to: {} / message: {}", PhoneNumbers.masked(to), message);
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(messagesUri)
+                .header("Authorization", authHeader)
+                .header("Content-Type", "application/x-www-form-urlencoded")
+                .header("Accept", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofByteArray(buildFormBody(to, message, tracking)))
+                .timeout(Duration.ofSeconds(30))
+                .build();
+        return httpClient.sendAsync(request, DISCARD_ON_SUCCESS)
+                .handle((response, error) -> {
+                    if (error != null) {
+                        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+                        log.error("[COTO] Error sending SMS via Twilio: {}", cause.getMessage());
+                        throw new CompletionException(new Exception("Failed to send SMS via Twilio", cause));
+                    }
+                    if (response.statusCode() < 200 || response.statusCode() >= 300) {
+                        throw new CompletionException(failure(response));
+                    }
+                    log.info("[COTO] SMS sent successfully via Twilio to: {}", PhoneNumbers.masked(to));
+                    return null;
+                });
+    }
+
+    /**
+     * Fetches the account, which checks the credentials without sending anything.
+     */
+    @Override
+    public void warmUp() throws Exception {
+        InetAddress.getAllByName(accountUri.getHost());
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(accountUri)
+                .header("Authorization", authHeader)
+                .header("Accept", "application/json")
+                .GET()
+                .timeout(Duration.ofSeconds(30))
+                .build();
+        HttpResponse<String> response = httpClient.send(request, DISCARD_ON_SUCCESS);
+        if (response.statusCode() < 200 || response.statusCode() >= 300) {
+            throw failure(response);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            releaseClient(accountSid);
+        }
+    }
+
+    byte[] buildFormBody(String to, String message, DeliveryTracking tracking) {
+        StringBuilder body = new StringBuilder(senderParameter.length() + to.length() + message.length() + 32)
+                .append(senderParameter)
+                .append("&To=").append(encode(to))
+                .append("&Body=").append(encode(message));
+        if (tracking != null) {
+            body.append("&StatusCallback=").append(encode(tracking.callbackUrl(TwilioBrokerServiceProvider.ID)));
+        }
+        return body.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Threads of the HTTP client, which is shared by the configurations of the same account
+     */
+    @Override
+    public Map<String, Number> stats() {
+        Map<String, Number> stats = new LinkedHashMap<>();
+        stats.put("httpThreads", sharedClient.threads.get());
+        stats.put("clientSharedBy", sharedClient.users);
+        return stats;
+    }
+
+    private static BrokerHttpException failure(HttpResponse<String> response) {
+        String code = "";
+        String detail = response.body();
+        try {
+            // Twilio errors: {"code": 21211, "message": "...", "more_info": "...", "status": 400}
+            JsonNode error = JsonSerialization.mapper.readTree(response.body());
+            code = error.path("code").asText();
+            detail = error.path("message").asText(detail);
+        } catch (IOException | RuntimeException e) {
+            // Not a Twilio error body (proxy, gateway): keep it as is
+        }
+        log.error("[COTO] Twilio SMS send failed. Status: {} - Code: {} - {}", response.statusCode(), code, detail);
+        return new BrokerHttpException("Failed to send SMS via Twilio. HTTP Status: " + response.statusCode()
+                + (code.isEmpty() ? "" : ", error " + code), response.statusCode());
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    private static synchronized SharedClient acquireClient(String accountSid) {
+        SharedClient shared = SHARED_CLIENTS.computeIfAbsent(accountSid, sid -> {
+            AtomicInteger threads = new AtomicInteger();
+            ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(() -> {
+                    threads.incrementAndGet();
+                    try {
+                        runnable.run();
+                    } finally {
+                        threads.decrementAndGet();
+                    }
+                }, "coto-sms-twilio-" + THREAD_COUNTER.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            return new SharedClient(executor, HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_2)
+                    .connectTimeout(Duration.ofSeconds(30))
+                    .executor(executor)
+                    .build(), threads);
+        });
+        shared.users++;
+        return shared;
+    }
+
+    private static synchronized void releaseClient(String accountSid) {
+        SharedClient shared = SHARED_CLIENTS.get(accountSid);
+        if (shared != null && --shared.users == 0) {
+            log.debug("[COTO] Shutting down Twilio HTTP client of an account");
+            SHARED_CLIENTS.remove(accountSid);
+            shared.executor.shutdownNow();
+        }
+    }
+
+    private static class SharedClient {
+        private final ExecutorService executor;
+        private final HttpClient client;
+        private final AtomicInteger threads;
+        /**
+         * Changed under the class lock, read without it by {@link #stats()}
+         */
+        private volatile int users;
+
+        private SharedClient(ExecutorService executor, HttpClient client, AtomicInteger threads) {
+            this.executor = executor;
+            this.client = client;
+            this.threads = threads;
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package br.coto.keycloak.otp.brokers.twilio;
+
+import br.coto.keycloak.otp.brokers.BrokerConfig;
+import br.coto.keycloak.otp.brokers.DeliveryReceipt;
+import br.coto.keycloak.otp.brokers.IBrokerService;
+import br.coto.keycloak.otp.brokers.IBrokerServiceProvider;
+import jakarta.ws.rs.core.HttpHeaders;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Base64;
+import java.util.Map;
+import java.util.TreeMap;
+
+public class TwilioBrokerServiceProvider implements IBrokerServiceProvider {
+
+    static final String ID = "twilio";
+    static final String SIGNATURE_HEADER = "X-Twilio-Signature";
+    private static final String SIGNATURE_ALGORITHM = "HmacSHA1";
+
+    @Override
+    public String getId() {
+        return ID;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Twilio";
+    }
+
+    @Override
+    public IBrokerService create(BrokerConfig config) {
+        return new TwilioBrokerService(config);
+    }
+
+    /**
+     * Reads a status callback: a form with {@code MessageStatus} and {@code ErrorCode}, posted to the
+     * {@code StatusCallback} URL of the message, which carries the message id as {@code id}.
+     */
+    @Override
+    public DeliveryReceipt parseReceipt(Map<String, String> parameters, String body) {
+        String messageId = parameters.get("id");
+        String status = parameters.get("MessageStatus");
+        if (messageId == null || status == null) {
+            return null;
+        }
+        String errorCode = parameters.get("ErrorCode");
+        String detail = errorCode != null && !errorCode.isEmpty() ? status + " (" + errorCode + ")" : status;
+        switch (status) {
+            case "delivered":
+            case "read":
+                return new DeliveryReceipt(messageId, DeliveryReceipt.Status.DELIVERED, detail);
+            case "failed":
+            case "undelivered":
+            case "canceled":
+                return new DeliveryReceipt(messageId, DeliveryReceipt.Status.FAILED, detail);
+            default:
+                return new DeliveryReceipt(messageId, DeliveryReceipt.Status.SENT, detail);
+        }
+    }
+
+    /**
+     * Checks the {@code X-Twilio-Signature} header: the Base64 HMAC-SHA1, keyed with the Auth Token of the account,
+     * of the callback URL followed by each form parameter name and value, sorted by name.
+     */
+    @Override
+    public boolean verifyReceipt(BrokerConfig config, String url, Map<String, String> formParameters, HttpHeaders headers) {
+        String signature = headers.getHeaderString(SIGNATURE_HEADER);
+        if (signature == null || config.getSecret() == null) {
+            return false;
+        }
+        StringBuilder signed = new StringBuilder(url);
+        new TreeMap<>(formParameters).forEach((name, value) -> signed.append(name).append(value));
+        try {
+            Mac mac = Mac.getInstance(SIGNATURE_ALGORITHM);
+            mac.init(new SecretKeySpec(config.getSecret().getBytes(StandardCharsets.UTF_8), SIGNATURE_ALGORITHM));
+            byte[] expected = mac.doFinal(signed.toString().getBytes(StandardCharsets.UTF_8));
+            return MessageDigest.isEqual(expected, Base64.getDecoder().decode(signature));
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+}
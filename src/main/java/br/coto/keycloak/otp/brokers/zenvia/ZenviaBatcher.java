@@ -0,0 +1,107 @@
+package br.coto.keycloak.otp.brokers.zenvia;
+
+import br.coto.keycloak.otp.brokers.DeliveryTracking;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Coalesces concurrent messages into batches.
+ * <p>
+ * A single daemon thread waits for the first message, then keeps collecting for up to {@code windowMillis}
+ * or until {@code maxSize} messages are waiting, and hands the batch to the flush callback. The callback is
+ * expected to complete the future of each message of the batch, usually asynchronously.
+ */
+@Slf4j
+class ZenviaBatcher {
+
+    private final BlockingQueue<BatchItem> queue = new LinkedBlockingQueue<>();
+    private final int maxSize;
+    private final long windowNanos;
+    private final Consumer<List<BatchItem>> flush;
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    ZenviaBatcher(int maxSize, long windowMillis, Consumer<List<BatchItem>> flush) {
+        this.maxSize = maxSize;
+        this.windowNanos = TimeUnit.MILLISECONDS.toNanos(windowMillis);
+        this.flush = flush;
+        this.thread = new Thread(this::run, "coto-sms-zenvia-batcher");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    CompletableFuture<Void> submit(String to, String message, DeliveryTracking tracking) {
+        BatchItem item = new BatchItem(to, message, tracking);
+        if (!running) {
+            item.future.completeExceptionally(new IllegalStateException("[COTO] Zenvia batcher is closed"));
+        } else {
+            queue.add(item);
+        }
+        return item.future;
+    }
+
+    int queued() {
+        return queue.size();
+    }
+
+    void close() {
+        running = false;
+        thread.interrupt();
+        List<BatchItem> pending = new ArrayList<>();
+        queue.drainTo(pending);
+        pending.forEach(item -> item.future.completeExceptionally(new IllegalStateException("[COTO] Zenvia batcher is closed")));
+    }
+
+    private void run() {
+        while (running) {
+            List<BatchItem> batch = new ArrayList<>(maxSize);
+            try {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + windowNanos;
+                while (batch.size() < maxSize) {
+                    long remaining = deadline - System.nanoTime();
+                    BatchItem next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                if (!running) {
+                    batch.forEach(item -> item.future.completeExceptionally(e));
+                    return;
+                }
+            }
+            if (batch.isEmpty()) {
+                continue;
+            }
+            try {
+                log.debug("[COTO] Flushing Zenvia batch of {} messages", batch.size());
+                flush.accept(batch);
+            } catch (Exception e) {
+                log.error("[COTO] Error flushing Zenvia batch: {}", e.getMessage(), e);
+                batch.forEach(item -> item.future.completeExceptionally(e));
+            }
+        }
+    }
+
+    static class BatchItem {
+        final String to;
+        final String message;
+        final DeliveryTracking tracking;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        BatchItem(String to, String message, DeliveryTracking tracking) {
+            this.to = to;
+            this.message = message;
+            this.tracking = tracking;
+        }
+    }
+}
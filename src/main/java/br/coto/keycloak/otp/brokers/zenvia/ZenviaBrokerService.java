@@ -1,10 +1,15 @@
 package br.coto.keycloak.otp.brokers.zenvia;
 
 import br.coto.keycloak.otp.brokers.BrokerConfig;
+import br.coto.keycloak.otp.brokers.BrokerHttpException;
+import br.coto.keycloak.otp.brokers.DeliveryTracking;
 import br.coto.keycloak.otp.brokers.IBrokerService;
+import com.fasterxml.jackson.databind.JsonNode;
 import lombok.extern.slf4j.Slf4j;
+import org.keycloak.util.JsonSerialization;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.URI;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
@@ -12,21 +17,65 @@ import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
 import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @Slf4j
 public class ZenviaBrokerService implements IBrokerService {
 
-    private static final String ZENVIA_API_URL = "https://api-rest.zenvia.com/services/send-sms";
+    private static final String ZENVIA_BASE_URL = "https://api-rest.zenvia.com/services";
+    private static final String ZENVIA_STATUS_OK = "00";
+
+    private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
 
     private final BrokerConfig config;
+    private final String authHeader;
+    private final URI sendUri;
+    private final URI sendMultipleUri;
+    private final URI statusUri;
+    private final ExecutorService executor;
+    private final AtomicInteger httpThreads = new AtomicInteger();
     private final HttpClient httpClient;
+    private final ZenviaBatcher batcher;
 
     public ZenviaBrokerService(BrokerConfig config) {
         this.validate(config);
         this.config = config;
+        this.authHeader = "Basic " + Base64.getEncoder()
+                .encodeToString((config.getKey() + ":" + config.getSecret()).getBytes(StandardCharsets.UTF_8));
+        String baseUrl = config.getBaseUrl() != null ? config.getBaseUrl().replaceAll("/+$", "") : ZENVIA_BASE_URL;
+        this.sendUri = URI.create(baseUrl + "/send-sms");
+        this.sendMultipleUri = URI.create(baseUrl + "/send-sms-multiple");
+        this.statusUri = URI.create(baseUrl + "/get-sms-status/coto-warm-up");
+        this.executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(() -> {
+                httpThreads.incrementAndGet();
+                try {
+                    runnable.run();
+                } finally {
+                    httpThreads.decrementAndGet();
+                }
+            }, "coto-sms-zenvia-" + THREAD_COUNTER.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Long-lived client: the registry keeps this instance, so connections stay pooled (keep-alive) between logins
         this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
                 .connectTimeout(Duration.ofSeconds(30))
+                .executor(executor)
                 .build();
+        this.batcher = config.getBatchMaxSize() > 1
+                ? new ZenviaBatcher(config.getBatchMaxSize(), config.getBatchWindowMillis(), this::sendBatch)
+                : null;
     }
 
     private void validate(BrokerConfig config) {
@@ -46,25 +95,34 @@ public class ZenviaBrokerService implements IBrokerService {
 
     @Override
     public void send(String to, String message) throws Exception {
+        send(to, message, null);
+    }
+
+    /**
+     * Tracked messages carry their id and ask for the final status, which Zenvia posts to the callback URL set up
+     * in the account.
+     */
+    @Override
+    public void send(String to, String message, DeliveryTracking tracking) throws Exception {
         log.debug("[COTO] Send using Zenvia: Data: to: {} / message: {}", to, message);
+        if (batcher != null) {
+            try {
+                batcher.submit(to, message, tracking).get();
+                return;
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+            }
+        }
         try {
-            String jsonPayload = buildJsonPayload(to, message);
-            String authHeader = "Basic " + Base64.getEncoder()
-                    .encodeToString((config.getKey() + ":" + config.getSecret()).getBytes(StandardCharsets.UTF_8));
-
-            HttpRequest request = HttpRequest.newBuilder()
-                    .uri(URI.create(ZENVIA_API_URL))
-                    .header("Authorization", authHeader)
-                    .header("Content-Type", "application/json")
-                    .POST(HttpRequest.BodyPublishers.ofString(jsonPayload, StandardCharsets.UTF_8))
-                    .timeout(Duration.ofSeconds(30))
-                    .build();
+            String jsonPayload = buildJsonPayload(to, message, tracking);
+
+            HttpRequest request = buildRequest(sendUri, jsonPayload);
             HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
             if (response.statusCode() >= 200 && response.statusCode() < 300) {
                 log.info("[COTO] SMS sent successfully via Zenvia to: {}", to);
             } else {
                 log.error("[COTO] Zenvia SMS send failed. Status: {} - Body: {}", response.statusCode(), response.body());
-                throw new Exception("Failed to send SMS via Zenvia. HTTP Status: " + response.statusCode());
+                throw new BrokerHttpException("Failed to send SMS via Zenvia. HTTP Status: " + response.statusCode(), response.statusCode());
             }
         } catch (IOException | InterruptedException e) {
             log.error("[COTO] Error sending SMS via Zenvia: {}", e.getMessage(), e);
@@ -72,10 +130,149 @@ public class ZenviaBrokerService implements IBrokerService {
         }
     }
 
-    private String buildJsonPayload(String to, String message) {
+    @Override
+    public CompletableFuture<Void> sendAsync(String to, String message, Executor executor) {
+        return sendAsync(to, message, null, executor);
+    }
+
+    /**
+     * In batching mode the message joins the next batch and no executor thread is held while it waits.
+     */
+    @Override
+    public CompletableFuture<Void> sendAsync(String to, String message, DeliveryTracking tracking, Executor executor) {
+        if (batcher != null) {
+            return batcher.submit(to, message, tracking);
+        }
+        return CompletableFuture.runAsync(() -> {
+            try {
+                send(to, message, tracking);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, executor);
+    }
+
+    /**
+     * Looks up the status of a message id that does not exist: Zenvia answers 401 when the credentials are wrong.
+     */
+    @Override
+    public void warmUp() throws Exception {
+        InetAddress.getAllByName(statusUri.getHost());
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(statusUri)
+                .header("Authorization", authHeader)
+                .header("Accept", "application/json")
+                .GET()
+                .timeout(Duration.ofSeconds(30))
+                .build();
+        HttpResponse<Void> response = httpClient.send(request, HttpResponse.BodyHandlers.discarding());
+        if (response.statusCode() == 401 || response.statusCode() == 403) {
+            throw new BrokerHttpException("Zenvia rejected the credentials. HTTP Status: " + response.statusCode(), response.statusCode());
+        }
+    }
+
+    @Override
+    public Map<String, Number> stats() {
+        Map<String, Number> stats = new LinkedHashMap<>();
+        stats.put("httpThreads", httpThreads.get());
+        if (batcher != null) {
+            stats.put("batchQueued", batcher.queued());
+        }
+        return stats;
+    }
+
+    @Override
+    public void close() {
+        log.debug("[COTO] Shutting down Zenvia HTTP client");
+        if (batcher != null) {
+            batcher.close();
+        }
+        executor.shutdownNow();
+    }
+
+    /**
+     * Sends the batch through the multi-message endpoint and completes each message with its own status.
+     */
+    private void sendBatch(List<ZenviaBatcher.BatchItem> batch) {
+        StringBuilder payload = new StringBuilder("{\"sendSmsMultiRequest\":{\"sendSmsRequestList\":[");
+        for (int i = 0; i < batch.size(); i++) {
+            if (i > 0) {
+                payload.append(',');
+            }
+            payload.append(buildMessageJson(batch.get(i).to, batch.get(i).message, batch.get(i).tracking));
+        }
+        payload.append("]}}");
+
+        httpClient.sendAsync(buildRequest(sendMultipleUri, payload.toString()), HttpResponse.BodyHandlers.ofString())
+                .whenComplete((response, error) -> {
+                    if (error != null) {
+                        log.error("[COTO] Error sending SMS batch via Zenvia: {}", error.getMessage());
+                        Exception failure = new Exception("Failed to send SMS via Zenvia", error);
+                        batch.forEach(item -> item.future.completeExceptionally(failure));
+                    } else if (response.statusCode() < 200 || response.statusCode() >= 300) {
+                        log.error("[COTO] Zenvia SMS batch failed. Status: {} - Body: {}", response.statusCode(), response.body());
+                        BrokerHttpException failure = new BrokerHttpException("Failed to send SMS via Zenvia. HTTP Status: " + response.statusCode(), response.statusCode());
+                        batch.forEach(item -> item.future.completeExceptionally(failure));
+                    } else {
+                        completeBatch(batch, response.body());
+                    }
+                });
+    }
+
+    private void completeBatch(List<ZenviaBatcher.BatchItem> batch, String body) {
+        JsonNode results;
+        try {
+            results = JsonSerialization.mapper.readTree(body).path("sendSmsMultiResponse").path("sendSmsResponseList");
+        } catch (IOException e) {
+            log.error("[COTO] Unreadable Zenvia batch response: {}", e.getMessage());
+            batch.forEach(item -> item.future.completeExceptionally(e));
+            return;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            ZenviaBatcher.BatchItem item = batch.get(i);
+            JsonNode result = results.path(i);
+            String statusCode = result.path("statusCode").asText();
+            if (ZENVIA_STATUS_OK.equals(statusCode)) {
+                log.info("[COTO] SMS sent successfully via Zenvia to: {}", item.to);
+                item.future.complete(null);
+            } else {
+                log.error("[COTO] Zenvia rejected message of batch. Status: {} - {}", statusCode, result.path("detailDescription").asText());
+                item.future.completeExceptionally(new Exception("Failed to send SMS via Zenvia. Status: " + statusCode));
+            }
+        }
+    }
+
+    private HttpRequest buildRequest(URI uri, String jsonPayload) {
+        return HttpRequest.newBuilder()
+                .uri(uri)
+                .header("Authorization", authHeader)
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(jsonPayload, StandardCharsets.UTF_8))
+                .timeout(Duration.ofSeconds(30))
+                .build();
+    }
+
+    String buildJsonPayload(String to, String message) {
+        return buildJsonPayload(to, message, null);
+    }
+
+    String buildJsonPayload(String to, String message, DeliveryTracking tracking) {
         // Zenvia classic API payload
+        return "{\"sendSmsRequest\":" + buildMessageJson(to, message, tracking) + "}";
+    }
+
+    private String buildMessageJson(String to, String message, DeliveryTracking tracking) {
+        if (tracking != null) {
+            return String.format(
+                    "{\"to\":\"%s\",\"msg\":\"%s\",\"sender\":\"%s\",\"id\":\"%s\",\"callbackOption\":\"FINAL\"}",
+                    to,
+                    message.replace("\"", "\\\""),
+                    config.getShortCode(),
+                    tracking.getMessageId()
+            );
+        }
         return String.format(
-                "{\"sendSmsRequest\":{\"to\":\"%s\",\"msg\":\"%s\",\"sender\":\"%s\"}}",
+                "{\"to\":\"%s\",\"msg\":\"%s\",\"sender\":\"%s\"}",
                 to,
                 message.replace("\"", "\\\""),
                 config.getShortCode()
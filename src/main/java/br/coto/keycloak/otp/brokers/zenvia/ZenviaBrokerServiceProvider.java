@@ -0,0 +1,59 @@
+package br.coto.keycloak.otp.brokers.zenvia;
+
+import br.coto.keycloak.otp.brokers.BrokerConfig;
+import br.coto.keycloak.otp.brokers.DeliveryReceipt;
+import br.coto.keycloak.otp.brokers.IBrokerService;
+import br.coto.keycloak.otp.brokers.IBrokerServiceProvider;
+import com.fasterxml.jackson.databind.JsonNode;
+import org.keycloak.util.JsonSerialization;
+
+import java.io.IOException;
+import java.util.Map;
+
+public class ZenviaBrokerServiceProvider implements IBrokerServiceProvider {
+
+    @Override
+    public String getId() {
+        return "zenvia";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "Zenvia";
+    }
+
+    @Override
+    public IBrokerService create(BrokerConfig config) {
+        return new ZenviaBrokerService(config);
+    }
+
+    /**
+     * Reads a {@code callbackMtRequest}: status {@code 00} to {@code 02} is still in transit, {@code 03} delivered,
+     * anything else (not received, blocked, expired, error) failed.
+     */
+    @Override
+    public DeliveryReceipt parseReceipt(Map<String, String> parameters, String body) {
+        JsonNode callback;
+        try {
+            callback = JsonSerialization.mapper.readTree(body).path("callbackMtRequest");
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+        String messageId = callback.path("id").asText(null);
+        String status = callback.path("status").asText(null);
+        if (messageId == null || status == null) {
+            return null;
+        }
+        String detail = status + " " + callback.path("statusDetail").asText("");
+        switch (status) {
+            case "00":
+            case "01":
+            case "02":
+                return new DeliveryReceipt(messageId, DeliveryReceipt.Status.SENT, detail);
+            case "03":
+                return new DeliveryReceipt(messageId, DeliveryReceipt.Status.DELIVERED, detail);
+            default:
+                return new DeliveryReceipt(messageId, DeliveryReceipt.Status.FAILED, detail);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package br.coto.keycloak.otp.delivery;
+
+import br.coto.keycloak.otp.brokers.BrokerProviders;
+import br.coto.keycloak.otp.brokers.DeliveryReceipt;
+import br.coto.keycloak.otp.brokers.IBrokerServiceProvider;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Path;
+import jakarta.ws.rs.PathParam;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.core.CacheControl;
+import jakarta.ws.rs.core.HttpHeaders;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import lombok.extern.slf4j.Slf4j;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Public endpoints of the delivery receipts, under {@code /realms/{realm}/sms-otp}.
+ * <p>
+ * The message id is random and only known to the provider and to the browser of the login, and a receipt can at
+ * most send the code again once per broker of the config. Receipts of providers that sign them (Twilio) are
+ * refused unless the signature matches the credentials of a broker of the config that sent the message.
+ */
+@Slf4j
+public class DeliveryResource {
+
+    private final KeycloakSession session;
+    private final RealmModel realm;
+    private final DeliveryTracker tracker;
+    private final BrokerProviders providers;
+
+    public DeliveryResource(KeycloakSession session, DeliveryTracker tracker, BrokerProviders providers) {
+        this.session = session;
+        this.realm = session.getContext().getRealm();
+        this.tracker = tracker;
+        this.providers = providers;
+    }
+
+    /**
+     * Receives a delivery receipt of the broker {@code broker}. Receipts of unknown or expired messages are
+     * acknowledged, so the provider does not retry them.
+     */
+    @POST
+    @Path("receipts/{broker}")
+    public Response receipt(@PathParam("broker") String broker, String body) {
+        IBrokerServiceProvider provider = providers.get(broker);
+        if (provider == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        Map<String, String> form = formParameters(body);
+        Map<String, String> parameters = new HashMap<>();
+        session.getContext().getUri().getQueryParameters().forEach((name, values) -> parameters.put(name, values.get(0)));
+        form.forEach(parameters::putIfAbsent);
+        DeliveryReceipt receipt = provider.parseReceipt(parameters, body);
+        if (receipt == null) {
+            log.debug("[COTO] Unreadable delivery receipt from broker {}", broker);
+            return Response.status(Response.Status.BAD_REQUEST).build();
+        }
+        String url = session.getContext().getUri().getRequestUri().toString();
+        HttpHeaders headers = session.getContext().getRequestHeaders();
+        if (!tracker.isAuthentic(session, realm, provider.getId(), receipt.getMessageId(),
+                config -> provider.verifyReceipt(config, url, form, headers))) {
+            log.warn("[COTO] Refused delivery receipt of SMS {} from broker {}: invalid signature", receipt.getMessageId(), broker);
+            return Response.status(Response.Status.FORBIDDEN).build();
+        }
+        DeliveryTracker.Status status = tracker.record(session, realm, provider.getId(), receipt);
+        log.debug("[COTO] Delivery receipt of SMS {} from broker {}: {} -> {}", receipt.getMessageId(), broker, receipt.getStatus(), status);
+        return Response.noContent().build();
+    }
+
+    /**
+     * Delivery status of a code, polled by the login page: {@code {"status": "delivered"}}.
+     */
+    @GET
+    @Path("status/{messageId}")
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response status(@PathParam("messageId") String messageId) {
+        DeliveryTracker.Status status = tracker.status(session, realm, messageId);
+        if (status == null) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        CacheControl noStore = new CacheControl();
+        noStore.setNoStore(true);
+        return Response.ok(Map.of("status", status.name().toLowerCase(Locale.ROOT))).cacheControl(noStore).build();
+    }
+
+    /**
+     * Form parameters of the body, empty unless the receipt is a form post
+     */
+    private Map<String, String> formParameters(String body) {
+        Map<String, String> parameters = new HashMap<>();
+        MediaType mediaType = session.getContext().getRequestHeaders().getMediaType();
+        if (body != null && mediaType != null && mediaType.isCompatible(MediaType.APPLICATION_FORM_URLENCODED_TYPE)) {
+            for (String pair : body.split("&")) {
+                int separator = pair.indexOf('=');
+                if (separator > 0) {
+                    parameters.putIfAbsent(URLDecoder.decode(pair.substring(0, separator), StandardCharsets.UTF_8),
+                            URLDecoder.decode(pair.substring(separator + 1), StandardCharsets.UTF_8));
+                }
+            }
+        }
+        return parameters;
+    }
+}
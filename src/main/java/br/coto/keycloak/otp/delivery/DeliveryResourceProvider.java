@@ -0,0 +1,27 @@
+package br.coto.keycloak.otp.delivery;
+
+import br.coto.keycloak.otp.brokers.BrokerProviders;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.services.resource.RealmResourceProvider;
+
+public class DeliveryResourceProvider implements RealmResourceProvider {
+
+    private final KeycloakSession session;
+    private final DeliveryTracker tracker;
+    private final BrokerProviders providers;
+
+    public DeliveryResourceProvider(KeycloakSession session, DeliveryTracker tracker, BrokerProviders providers) {
+        this.session = session;
+        this.tracker = tracker;
+        this.providers = providers;
+    }
+
+    @Override
+    public Object getResource() {
+        return new DeliveryResource(session, tracker, providers);
+    }
+
+    @Override
+    public void close() {
+    }
+}
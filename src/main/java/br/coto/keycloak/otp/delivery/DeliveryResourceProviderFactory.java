@@ -0,0 +1,43 @@
+package br.coto.keycloak.otp.delivery;
+
+import br.coto.keycloak.otp.SmsAuthenticatorFactory;
+import org.keycloak.Config;
+import org.keycloak.authentication.Authenticator;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.services.resource.RealmResourceProvider;
+import org.keycloak.services.resource.RealmResourceProviderFactory;
+
+/**
+ * Registers the delivery receipt endpoints. They share the tracker and brokers of the {@link SmsAuthenticatorFactory}.
+ */
+public class DeliveryResourceProviderFactory implements RealmResourceProviderFactory {
+
+    public static final String PROVIDER_ID = "sms-otp";
+
+    private SmsAuthenticatorFactory authenticatorFactory;
+
+    @Override
+    public RealmResourceProvider create(KeycloakSession session) {
+        return new DeliveryResourceProvider(session, authenticatorFactory.getDeliveryTracker(),
+                authenticatorFactory.getBrokerProviders());
+    }
+
+    @Override
+    public void init(Config.Scope config) {
+    }
+
+    @Override
+    public void postInit(KeycloakSessionFactory factory) {
+        authenticatorFactory = (SmsAuthenticatorFactory) factory.getProviderFactory(Authenticator.class, SmsAuthenticatorFactory.PROVIDER_ID);
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getId() {
+        return PROVIDER_ID;
+    }
+}
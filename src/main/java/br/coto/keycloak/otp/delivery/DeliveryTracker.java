@@ -0,0 +1,271 @@
+package br.coto.keycloak.otp.delivery;
+
+import br.coto.keycloak.otp.brokers.BrokerConfig;
+import br.coto.keycloak.otp.brokers.BrokerProviders;
+import br.coto.keycloak.otp.brokers.BrokerRegistry;
+import br.coto.keycloak.otp.brokers.BrokerTarget;
+import br.coto.keycloak.otp.brokers.DeliveryReceipt;
+import br.coto.keycloak.otp.brokers.DeliveryTracking;
+import br.coto.keycloak.otp.brokers.IBrokerService;
+import br.coto.keycloak.otp.brokers.IBrokerServiceProvider;
+import br.coto.keycloak.otp.dispatch.SmsDispatcher;
+import br.coto.keycloak.otp.metrics.SmsMetrics;
+import br.coto.keycloak.otp.settings.SmsSettings;
+import br.coto.keycloak.otp.settings.SmsSettingsCache;
+import lombok.extern.slf4j.Slf4j;
+import org.keycloak.common.util.SecretGenerator;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.SingleUseObjectProvider;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Predicate;
+
+/**
+ * Follows the delivery of tracked codes and sends the ones a provider reports as undelivered again through
+ * another broker of the authenticator config.
+ * <p>
+ * Each tracked message has an entry in the {@link SingleUseObjectProvider}, which is shared by the cluster, so a
+ * receipt can reach any node. The entry lives as long as the code and holds the realm, the authenticator config,
+ * the number and text of the SMS, the brokers that failed to deliver it and the status shown on the login page.
+ * A message is re-sent at most once per broker, even when receipts are repeated or reach several nodes.
+ */
+@Slf4j
+public class DeliveryTracker {
+
+    public enum Status {
+        /**
+         * Handed to a broker, no receipt yet
+         */
+        PENDING,
+        SENT,
+        DELIVERED,
+        /**
+         * Undelivered, being sent again through another broker
+         */
+        RESENT,
+        /**
+         * Undelivered and no broker left to try: the user has to ask for a new code
+         */
+        FAILED
+    }
+
+    private static final String KEY_PREFIX = "coto-sms-delivery.";
+    private static final int MESSAGE_ID_LENGTH = 20;
+
+    private static final String REALM = "realm";
+    private static final String CONFIG = "config";
+    private static final String PHONE = "phone";
+    private static final String MESSAGE = "message";
+    private static final String STATUS = "status";
+    private static final String FAILED_BROKERS = "failedBrokers";
+    private static final String EXPIRES_AT = "expiresAt";
+
+    private final BrokerProviders providers;
+    private final BrokerRegistry brokerRegistry;
+    private final SmsDispatcher dispatcher;
+    private final SmsSettingsCache settingsCache;
+
+    public DeliveryTracker(BrokerProviders providers, BrokerRegistry brokerRegistry, SmsDispatcher dispatcher,
+                           SmsSettingsCache settingsCache) {
+        this.providers = providers;
+        this.brokerRegistry = brokerRegistry;
+        this.dispatcher = dispatcher;
+        this.settingsCache = settingsCache;
+    }
+
+    /**
+     * Starts tracking a code about to be sent.
+     *
+     * @param expiresAt expiry of the code, after which receipts are ignored
+     * @return the tracking to hand to the broker with the message
+     */
+    public DeliveryTracking track(KeycloakSession session, RealmModel realm, String configId, String phone,
+                                  String message, long expiresAt) {
+        String messageId = SecretGenerator.getInstance().randomString(MESSAGE_ID_LENGTH);
+        Map<String, String> entry = new HashMap<>();
+        entry.put(REALM, realm.getId());
+        entry.put(CONFIG, configId);
+        entry.put(PHONE, phone);
+        entry.put(MESSAGE, message);
+        entry.put(STATUS, Status.PENDING.name());
+        entry.put(EXPIRES_AT, Long.toString(expiresAt));
+        session.singleUseObjects().put(KEY_PREFIX + messageId, lifespan(expiresAt), entry);
+        return new DeliveryTracking(messageId, baseUrl(session, realm) + "/receipts");
+    }
+
+    /**
+     * @return the delivery status of the message, or {@code null} if it is unknown to the realm or expired
+     */
+    public Status status(KeycloakSession session, RealmModel realm, String messageId) {
+        Map<String, String> entry = session.singleUseObjects().get(KEY_PREFIX + messageId);
+        if (entry == null || !realm.getId().equals(entry.get(REALM))) {
+            return null;
+        }
+        return Status.valueOf(entry.get(STATUS));
+    }
+
+    /**
+     * URL of the status of the message, polled by the login page
+     */
+    public static String statusUrl(KeycloakSession session, RealmModel realm, String messageId) {
+        return baseUrl(session, realm) + "/status/" + messageId;
+    }
+
+    /**
+     * Whether a receipt posted by {@code brokerId} for the message passes the check of {@code verifier} with the
+     * credentials of a broker of that id in the config that sent the message. Receipts of messages unknown to the
+     * realm pass, since {@link #record} ignores them.
+     */
+    public boolean isAuthentic(KeycloakSession session, RealmModel realm, String brokerId, String messageId,
+                               Predicate<BrokerConfig> verifier) {
+        Map<String, String> entry = session.singleUseObjects().get(KEY_PREFIX + messageId);
+        if (entry == null || !realm.getId().equals(entry.get(REALM))) {
+            return true;
+        }
+        AuthenticatorConfigModel config = realm.getAuthenticatorConfigById(entry.get(CONFIG));
+        if (config == null) {
+            return false;
+        }
+        try {
+            return settingsCache.get(realm.getId(), config).getPlan().getTargets().stream()
+                    .filter(target -> brokerId.equals(brokerId(target)))
+                    .anyMatch(target -> verifier.test(target.getConfig()));
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Applies a receipt posted by {@code brokerId}. A failure sends the message again through the first broker of
+     * the config that has not failed it yet; statuses never go back from delivered.
+     *
+     * @return the new status, or {@code null} if the message is unknown to the realm or expired
+     */
+    public Status record(KeycloakSession session, RealmModel realm, String brokerId, DeliveryReceipt receipt) {
+        SingleUseObjectProvider store = session.singleUseObjects();
+        String key = KEY_PREFIX + receipt.getMessageId();
+        Map<String, String> stored = store.get(key);
+        if (stored == null || !realm.getId().equals(stored.get(REALM))) {
+            return null;
+        }
+        SmsMetrics.deliveryReceipt(realm.getName(), brokerId, receipt.getStatus().name().toLowerCase(Locale.ROOT));
+
+        Map<String, String> entry = new HashMap<>(stored);
+        Status current = Status.valueOf(entry.get(STATUS));
+        Status next = current;
+        switch (receipt.getStatus()) {
+            case SENT:
+                if (current == Status.PENDING) {
+                    next = Status.SENT;
+                }
+                break;
+            case DELIVERED:
+                next = Status.DELIVERED;
+                break;
+            default:
+                if (current != Status.DELIVERED) {
+                    log.warn("[COTO] SMS {} not delivered by broker {}: {}", receipt.getMessageId(), brokerId, receipt.getDetail());
+                    next = resend(session, realm, brokerId, receipt.getMessageId(), entry);
+                }
+        }
+        entry.put(STATUS, next.name());
+        if (!entry.equals(stored)) {
+            store.replace(key, entry);
+        }
+        return next;
+    }
+
+    /**
+     * Id of the provider of a broker of the config, which stores its display name; receipts are posted with the id
+     */
+    private String brokerId(BrokerTarget target) {
+        IBrokerServiceProvider provider = providers.get(target.getBrokerName());
+        return provider != null ? provider.getId() : target.getBrokerName();
+    }
+
+    private Status resend(KeycloakSession session, RealmModel realm, String failedBroker, String messageId,
+                          Map<String, String> entry) {
+        Set<String> failedBrokers = new HashSet<>(Arrays.asList(entry.getOrDefault(FAILED_BROKERS, "").split(",")));
+        failedBrokers.add(failedBroker);
+        failedBrokers.remove("");
+        entry.put(FAILED_BROKERS, String.join(",", failedBrokers));
+
+        AuthenticatorConfigModel config = realm.getAuthenticatorConfigById(entry.get(CONFIG));
+        if (config == null) {
+            return Status.FAILED;
+        }
+        SmsSettings settings;
+        try {
+            settings = settingsCache.get(realm.getId(), config);
+        } catch (IllegalArgumentException e) {
+            return Status.FAILED;
+        }
+        Optional<BrokerTarget> alternative = settings.getPlan().getTargets().stream()
+                .filter(target -> !failedBrokers.contains(brokerId(target)))
+                .findFirst();
+        if (alternative.isEmpty()) {
+            log.info("[COTO] No broker left to send SMS {} again", messageId);
+            return Status.FAILED;
+        }
+
+        BrokerTarget target = alternative.get();
+        long expiresAt = Long.parseLong(entry.get(EXPIRES_AT));
+        if (!session.singleUseObjects().putIfAbsent(KEY_PREFIX + messageId + ".resend." + target.getBrokerName(), lifespan(expiresAt))) {
+            // Repeated receipt: the message is already on its way through that broker
+            return Status.RESENT;
+        }
+        try {
+            IBrokerService service = brokerRegistry.getResend(realm.getId(), realm.getName(), config.getId(),
+                    settings.getPlan(), target);
+            DeliveryTracking tracking = new DeliveryTracking(messageId, baseUrl(session, realm) + "/receipts");
+            KeycloakSessionFactory factory = session.getKeycloakSessionFactory();
+            String realmId = realm.getId();
+            dispatcher.submit(realmId, realm.getName(), service, entry.get(PHONE), entry.get(MESSAGE), tracking).whenComplete((result, error) -> {
+                if (error != null) {
+                    log.error("[COTO] Could not send SMS {} again through broker {}: {}", messageId, target.getBrokerName(), error.getMessage());
+                    KeycloakModelUtils.runJobInTransaction(factory, s -> markFailed(s, realmId, messageId));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            log.warn("[COTO] SMS dispatch queue is full, not sending SMS {} again", messageId);
+            return Status.FAILED;
+        } catch (Exception e) {
+            log.error("[COTO] Could not send SMS {} again through broker {}: {}", messageId, target.getBrokerName(), e.getMessage());
+            return Status.FAILED;
+        }
+        log.info("[COTO] Sending SMS {} again through broker {}", messageId, target.getBrokerName());
+        SmsMetrics.deliveryResent(realm.getName(), target.getBrokerName());
+        return Status.RESENT;
+    }
+
+    private static void markFailed(KeycloakSession session, String realmId, String messageId) {
+        String key = KEY_PREFIX + messageId;
+        Map<String, String> stored = session.singleUseObjects().get(key);
+        if (stored != null && realmId.equals(stored.get(REALM)) && Status.RESENT.name().equals(stored.get(STATUS))) {
+            Map<String, String> entry = new HashMap<>(stored);
+            entry.put(STATUS, Status.FAILED.name());
+            session.singleUseObjects().replace(key, entry);
+        }
+    }
+
+    private static String baseUrl(KeycloakSession session, RealmModel realm) {
+        return session.getContext().getUri().getBaseUriBuilder()
+                .path("realms").path(realm.getName()).path(DeliveryResourceProviderFactory.PROVIDER_ID)
+                .build().toString();
+    }
+
+    private static long lifespan(long expiresAt) {
+        return Math.max(1, (expiresAt - System.currentTimeMillis() + 999) / 1000);
+    }
+}
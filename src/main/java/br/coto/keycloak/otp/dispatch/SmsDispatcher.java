@@ -0,0 +1,318 @@
+package br.coto.keycloak.otp.dispatch;
+
+import br.coto.keycloak.otp.brokers.DeliveryTracking;
+import br.coto.keycloak.otp.brokers.IBrokerService;
+import br.coto.keycloak.otp.metrics.SmsMetrics;
+import io.micrometer.core.instrument.Meter;
+import io.opentelemetry.context.Context;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends SMS messages off the login thread.
+ * <p>
+ * Each realm has its own bounded queue, served by a small fixed pool of worker threads shared by all realms.
+ * Workers take one message per realm in turn, so a realm with a long queue does not delay the others, and a realm
+ * never occupies more than {@code threadsPerRealm} workers at once. When the queue of a realm is full the
+ * dispatcher either rejects the message ({@link OverflowPolicy#REJECT}) or sends it on the calling thread
+ * ({@link OverflowPolicy#SYNC}). The outcome of each send is kept by key (one per authentication session tab)
+ * until the next {@code action} call picks it up.
+ */
+@Slf4j
+public class SmsDispatcher {
+
+    public enum OverflowPolicy {
+        REJECT,
+        SYNC
+    }
+
+    private static final long PURGE_INTERVAL_SECONDS = 60;
+    private static final long SHUTDOWN_WAIT_MILLIS = 5000;
+
+    private final int queueDepth;
+    private final int threadsPerRealm;
+    private final OverflowPolicy overflowPolicy;
+    private final Thread[] workers;
+    private final ScheduledExecutorService purger;
+    private final Map<String, RealmQueue> queues = new ConcurrentHashMap<>();
+    /**
+     * Realm queues with a message waiting and a worker to spare, in the order they are served
+     */
+    private final LinkedBlockingQueue<RealmQueue> ready = new LinkedBlockingQueue<>();
+    private final Map<String, PendingSend> pending = new ConcurrentHashMap<>();
+    private volatile boolean running = true;
+
+    /**
+     * @param queueDepth      messages waiting per realm
+     * @param threadsPerRealm workers a single realm can occupy at once
+     */
+    public SmsDispatcher(int threads, int queueDepth, int threadsPerRealm, OverflowPolicy overflowPolicy) {
+        this.queueDepth = queueDepth;
+        this.threadsPerRealm = threadsPerRealm > 0 ? Math.min(threadsPerRealm, threads) : threads;
+        this.overflowPolicy = overflowPolicy;
+        this.workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            workers[i] = daemon(this::work, "coto-sms-dispatch-" + (i + 1));
+            workers[i].start();
+        }
+        this.purger = Executors.newSingleThreadScheduledExecutor(runnable -> daemon(runnable, "coto-sms-dispatch-purge"));
+        this.purger.scheduleWithFixedDelay(this::purgeExpired, PURGE_INTERVAL_SECONDS, PURGE_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        log.info("[COTO] SMS dispatcher started: threads={}, threadsPerRealm={}, queueDepth={} per realm, overflow={}",
+                threads, this.threadsPerRealm, queueDepth, overflowPolicy);
+    }
+
+    /**
+     * Queues the message and returns immediately. The send result is recorded under {@code key}.
+     *
+     * @param tracking  delivery receipt correlation, or {@code null}
+     * @param ttlMillis how long a failed result is kept waiting for the user to come back
+     * @throws RejectedExecutionException when the realm queue is full and the overflow policy is {@link OverflowPolicy#REJECT}
+     */
+    public CompletableFuture<Void> dispatch(String key, String realmId, String realmName, IBrokerService service, String to,
+                                            String message, DeliveryTracking tracking, long ttlMillis) {
+        CompletableFuture<Void> future = submit(realmId, realmName, service, to, message, tracking);
+        PendingSend pendingSend = new PendingSend(future, System.currentTimeMillis() + ttlMillis);
+        pending.put(key, pendingSend);
+        future.whenComplete((result, error) -> {
+            if (error == null) {
+                pending.remove(key, pendingSend);
+            } else {
+                log.error("[COTO] Asynchronous SMS send failed: {}", error.getMessage());
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Queues the message on the queue of the realm without recording its result; the caller handles the returned future.
+     *
+     * @param tracking delivery receipt correlation, or {@code null}
+     * @throws RejectedExecutionException when the realm queue is full and the overflow policy is {@link OverflowPolicy#REJECT}
+     */
+    public CompletableFuture<Void> submit(String realmId, String realmName, IBrokerService service, String to,
+                                          String message, DeliveryTracking tracking) {
+        return submit(realmId, realmName, service, to, message, tracking, overflowPolicy);
+    }
+
+    /**
+     * Like {@link #submit(String, String, IBrokerService, String, String, DeliveryTracking)}, but never sends on the
+     * calling thread: for background callers that must not block, such as the outbox timer.
+     *
+     * @throws RejectedExecutionException when the realm queue is full, whatever the overflow policy
+     */
+    public CompletableFuture<Void> trySubmit(String realmId, String realmName, IBrokerService service, String to,
+                                             String message, DeliveryTracking tracking) {
+        return submit(realmId, realmName, service, to, message, tracking, OverflowPolicy.REJECT);
+    }
+
+    private CompletableFuture<Void> submit(String realmId, String realmName, IBrokerService service, String to,
+                                           String message, DeliveryTracking tracking, OverflowPolicy policy) {
+        RealmQueue queue = queues.computeIfAbsent(realmId, id -> new RealmQueue(realmName));
+        try {
+            return service.sendAsync(to, message, tracking, queue);
+        } catch (RejectedExecutionException e) {
+            if (policy == OverflowPolicy.REJECT || !running) {
+                log.warn("[COTO] SMS dispatch queue of realm {} is full ({} queued), shedding message", realmName, queue.queued());
+                SmsMetrics.rejected(realmName, "queue_full");
+                throw e;
+            }
+            log.warn("[COTO] SMS dispatch queue of realm {} is full, sending on the calling thread", realmName);
+            return service.sendAsync(to, message, tracking, Runnable::run);
+        }
+    }
+
+    /**
+     * Returns and clears the failure recorded for {@code key}, or {@code null} if the send succeeded or is still running.
+     */
+    public Throwable takeFailure(String key) {
+        PendingSend pendingSend = pending.get(key);
+        if (pendingSend == null || !pendingSend.future.isCompletedExceptionally()) {
+            return null;
+        }
+        pending.remove(key, pendingSend);
+        try {
+            pendingSend.future.join();
+            return null;
+        } catch (Exception e) {
+            return e.getCause() != null ? e.getCause() : e;
+        }
+    }
+
+    public void forget(String key) {
+        pending.remove(key);
+    }
+
+    /**
+     * Drops the queue of a removed realm. Messages already queued are still sent.
+     */
+    public void evictRealm(String realmId) {
+        RealmQueue queue = queues.remove(realmId);
+        if (queue != null) {
+            queue.gauges.forEach(SmsMetrics::remove);
+        }
+    }
+
+    /**
+     * Queue depth and busy workers of the realm, and the size of the shared worker pool. Read without locking the
+     * queue, so the values may be a message behind.
+     */
+    public Map<String, Object> stats(String realmId) {
+        RealmQueue queue = queues.get(realmId);
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("queued", queue != null ? queue.queued() : 0);
+        stats.put("active", queue != null ? queue.active() : 0);
+        stats.put("queueDepth", queueDepth);
+        stats.put("threadsPerRealm", threadsPerRealm);
+        stats.put("threads", workers.length);
+        return stats;
+    }
+
+    public void close() {
+        log.debug("[COTO] Shutting down SMS dispatcher ({} queued)", queues.values().stream().mapToInt(RealmQueue::queued).sum());
+        purger.shutdownNow();
+        running = false;
+        long deadline = System.currentTimeMillis() + SHUTDOWN_WAIT_MILLIS;
+        try {
+            for (Thread worker : workers) {
+                worker.join(Math.max(1, deadline - System.currentTimeMillis()));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (Thread worker : workers) {
+            worker.interrupt();
+        }
+        queues.keySet().forEach(this::evictRealm);
+        pending.clear();
+    }
+
+    /**
+     * Serves the ready realms one message at a time until the dispatcher is closed and nothing is left to send.
+     */
+    private void work() {
+        while (running || !ready.isEmpty()) {
+            RealmQueue queue;
+            try {
+                queue = ready.poll(100, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (queue == null) {
+                continue;
+            }
+            Runnable task = queue.next();
+            if (task == null) {
+                continue;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                log.error("[COTO] SMS dispatch task failed: {}", e.getMessage(), e);
+            } finally {
+                queue.done();
+            }
+        }
+    }
+
+    private void purgeExpired() {
+        long now = System.currentTimeMillis();
+        pending.values().removeIf(pendingSend -> pendingSend.expiresAt < now);
+    }
+
+    private static Thread daemon(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * Messages of one realm. The queue is in {@link #ready} at most once, and only while it has a message waiting
+     * and fewer than {@code threadsPerRealm} messages being sent.
+     */
+    private class RealmQueue implements Executor {
+        private final String realmName;
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        private final List<Meter> gauges;
+        // Changed under the queue lock, read without it by the gauges and the stats
+        private volatile int queued;
+        private volatile int active;
+        private boolean scheduled;
+
+        private RealmQueue(String realmName) {
+            this.realmName = realmName;
+            this.gauges = List.of(
+                    SmsMetrics.realmGauge("dispatch.queued", "Messages waiting in the dispatch queue of the realm", realmName, this::queued),
+                    SmsMetrics.realmGauge("dispatch.active", "Dispatch workers busy with messages of the realm", realmName, this::active));
+        }
+
+        @Override
+        public synchronized void execute(Runnable task) {
+            if (!running) {
+                throw new RejectedExecutionException("[COTO] SMS dispatcher is closed");
+            }
+            if (tasks.size() >= queueDepth) {
+                throw new RejectedExecutionException("[COTO] SMS dispatch queue of realm " + realmName + " is full");
+            }
+            // Spans started by the task are children of the span of the login request
+            tasks.add(Context.current().wrap(task));
+            queued = tasks.size();
+            schedule();
+        }
+
+        /**
+         * Takes the next message for a worker and puts the queue back at the end of the ready list if it has more.
+         */
+        private synchronized Runnable next() {
+            scheduled = false;
+            Runnable task = tasks.poll();
+            if (task != null) {
+                queued = tasks.size();
+                active++;
+            }
+            schedule();
+            return task;
+        }
+
+        private synchronized void done() {
+            active--;
+            schedule();
+        }
+
+        private void schedule() {
+            if (!scheduled && !tasks.isEmpty() && active < threadsPerRealm) {
+                scheduled = true;
+                ready.add(this);
+            }
+        }
+
+        private int queued() {
+            return queued;
+        }
+
+        private int active() {
+            return active;
+        }
+    }
+
+    private static class PendingSend {
+        private final CompletableFuture<Void> future;
+        private final long expiresAt;
+
+        private PendingSend(CompletableFuture<Void> future, long expiresAt) {
+            this.future = future;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
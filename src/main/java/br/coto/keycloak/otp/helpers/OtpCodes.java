@@ -0,0 +1,41 @@
+package br.coto.keycloak.otp.helpers;
+
+/**
+ * Checks on entered codes that take the same time whatever the content, so timing does not tell how much of a
+ * code was right, and allocate nothing.
+ */
+public final class OtpCodes {
+
+    private OtpCodes() {
+    }
+
+    /**
+     * Whether {@code code} is a non-empty string of ASCII digits.
+     */
+    public static boolean isDigits(CharSequence code) {
+        if (code == null || code.length() == 0) {
+            return false;
+        }
+        int invalid = 0;
+        for (int i = 0; i < code.length(); i++) {
+            char c = code.charAt(i);
+            // Negative when c is out of range on either side
+            invalid |= (c - '0') | ('9' - c);
+        }
+        return invalid >= 0;
+    }
+
+    /**
+     * Compares the expected code with the entered one in time that only depends on the length of the expected code.
+     */
+    public static boolean matches(String expected, String entered) {
+        if (expected == null || entered == null || entered.isEmpty()) {
+            return false;
+        }
+        int difference = expected.length() ^ entered.length();
+        for (int i = 0; i < expected.length(); i++) {
+            difference |= expected.charAt(i) ^ entered.charAt(i % entered.length());
+        }
+        return difference == 0;
+    }
+}
@@ -0,0 +1,124 @@
+package br.coto.keycloak.otp.helpers;
+
+/**
+ * Validation, normalization and masking of E.164 phone numbers without regular expressions.
+ * <p>
+ * Numbers may contain spaces and hyphens as separators; once they are removed the number must be a {@code +}
+ * followed by 8 to 15 digits, the first one not being {@code 0}. Each check is a single pass over the characters
+ * and allocates nothing, except for the normalized string when the input holds separators.
+ */
+public final class PhoneNumbers {
+
+    private static final int MIN_DIGITS = 8;
+    private static final int MAX_DIGITS = 15;
+
+    private PhoneNumbers() {
+    }
+
+    public static boolean isValid(CharSequence phoneNumber) {
+        return digitCount(phoneNumber) > 0;
+    }
+
+    /**
+     * Returns the number without separators (e.g. {@code +5511987654321}), or {@code null} if it is not valid.
+     * A number that is already normalized is returned as is.
+     */
+    public static String normalize(String phoneNumber) {
+        int digits = digitCount(phoneNumber);
+        if (digits == 0) {
+            return null;
+        }
+        if (phoneNumber.length() == digits + 1) {
+            return phoneNumber;
+        }
+        char[] normalized = new char[digits + 1];
+        int length = 0;
+        for (int i = 0; i < phoneNumber.length(); i++) {
+            char c = phoneNumber.charAt(i);
+            if (c == '+' || (c >= '0' && c <= '9')) {
+                normalized[length++] = c;
+            }
+        }
+        return new String(normalized);
+    }
+
+    /**
+     * Whether {@code e164} is what {@link #normalize(String)} returns for {@code phoneNumber}, without allocating.
+     */
+    public static boolean isNormalizedFormOf(String e164, String phoneNumber) {
+        if (phoneNumber == null || e164 == null || digitCount(e164) + 1 != e164.length()) {
+            return false;
+        }
+        int length = 0;
+        for (int i = 0; i < phoneNumber.length(); i++) {
+            char c = phoneNumber.charAt(i);
+            if (isSeparator(c)) {
+                continue;
+            }
+            if (length == e164.length() || e164.charAt(length++) != c) {
+                return false;
+            }
+        }
+        return length == e164.length();
+    }
+
+    /**
+     * Masks all but the first and last characters of the number, e.g. {@code +551******4321}.
+     */
+    public static String mask(String phoneNumber) {
+        if (phoneNumber == null || phoneNumber.length() <= 4) {
+            return "****";
+        }
+        int length = phoneNumber.length();
+        int visibleChars = Math.min(4, length / 3);
+        char[] masked = new char[length];
+        for (int i = 0; i < length; i++) {
+            masked[i] = i < visibleChars || i >= length - visibleChars ? phoneNumber.charAt(i) : '*';
+        }
+        return new String(masked);
+    }
+
+    /**
+     * Log argument that masks the number only when the message is actually written.
+     */
+    public static Object masked(String phoneNumber) {
+        return new Object() {
+            @Override
+            public String toString() {
+                return phoneNumber != null ? mask(phoneNumber) : "none";
+            }
+        };
+    }
+
+    /**
+     * Number of digits of a valid number, or {@code 0} if it is not valid.
+     */
+    private static int digitCount(CharSequence phoneNumber) {
+        if (phoneNumber == null) {
+            return 0;
+        }
+        int digits = 0;
+        boolean plus = false;
+        for (int i = 0; i < phoneNumber.length(); i++) {
+            char c = phoneNumber.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (!plus || (digits == 0 && c == '0') || ++digits > MAX_DIGITS) {
+                    return 0;
+                }
+            } else if (c == '+') {
+                if (plus) {
+                    return 0;
+                }
+                plus = true;
+            } else if (!isSeparator(c)) {
+                return 0;
+            }
+        }
+        return digits >= MIN_DIGITS ? digits : 0;
+    }
+
+    private static boolean isSeparator(char c) {
+        // Same characters as [\s\-]
+        return c == ' ' || c == '-' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+}
@@ -4,13 +4,41 @@ public enum SMSFields {
     CODE("code"),
     CODE_LENGTH("length"),
     CODE_TTL("ttl"),
+    CODE_SENT_AT("sentAt"),
+    CODE_PHONE("phone"),
+    CODE_MESSAGE_ID("messageId"),
+    CODE_ATTEMPTS("attempts"),
+    RESEND("resend"),
+    RESEND_INTERVAL("resend_interval"),
     SENDER_NAME("senderName"),
     SIMULATION_MODE("simulation"),
     PHONE_ATTRIBUTE("phone_attribute_name"),
     BROKER_LIST("brokers"),
     BROKER_SHORT_CODE( "broker_short_code" ),
     BROKER_KEY( "broker_key" ),
-    BROKER_SECRET( "broker_secret" );
+    BROKER_SECRET( "broker_secret" ),
+    BROKER_URL( "broker_url" ),
+    ASYNC_DISPATCH( "async_dispatch" ),
+    FALLBACK_BROKER( "fallback_broker" ),
+    FALLBACK_BROKER_SHORT_CODE( "fallback_broker_short_code" ),
+    FALLBACK_BROKER_KEY( "fallback_broker_key" ),
+    FALLBACK_BROKER_SECRET( "fallback_broker_secret" ),
+    FALLBACK_BROKER_URL( "fallback_broker_url" ),
+    ROUTING_STRATEGY( "routing_strategy" ),
+    HEDGE( "hedge" ),
+    CIRCUIT_FAILURE_THRESHOLD( "circuit_failure_threshold" ),
+    CIRCUIT_OPEN_SECONDS( "circuit_open_seconds" ),
+    MAX_CONCURRENT_PER_BROKER( "max_concurrent_per_broker" ),
+    MAX_CONCURRENT_PER_REALM( "max_concurrent_per_realm" ),
+    MAX_PER_SECOND_PER_REALM( "max_per_second_per_realm" ),
+    RATE_LIMIT_BURST( "rate_limit_burst" ),
+    RATE_LIMIT_REFILL_SECONDS( "rate_limit_refill_seconds" ),
+    MAX_ATTEMPTS( "max_attempts" ),
+    LOCKOUT_ATTEMPTS( "lockout_attempts" ),
+    BATCH_MAX_SIZE( "batch_max_size" ),
+    BATCH_WINDOW_MILLIS( "batch_window_ms" ),
+    OUTBOX( "outbox" ),
+    DELIVERY_RECEIPTS( "delivery_receipts" );
 
     private final String value;
 
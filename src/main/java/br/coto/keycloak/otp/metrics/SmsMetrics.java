@@ -0,0 +1,145 @@
+package br.coto.keycloak.otp.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Micrometer meters of the SMS OTP flow.
+ * <p>
+ * Meters are registered on Micrometer's global registry, which Keycloak exposes on its metrics endpoint
+ * when started with {@code KC_METRICS_ENABLED=true}. Every meter is tagged by realm and broker.
+ */
+public final class SmsMetrics {
+
+    private static final String PREFIX = "keycloak.sms.otp.";
+    private static final String TAG_REALM = "realm";
+    private static final String TAG_BROKER = "broker";
+
+    private static final MeterRegistry REGISTRY = Metrics.globalRegistry;
+
+    private SmsMetrics() {
+    }
+
+    /**
+     * Records one call to a broker.
+     *
+     * @param status HTTP status bucket ({@code 2xx}, {@code 5xx}...), {@code rejected} when the request was
+     *               not sent, or {@code error} for transport failures
+     */
+    public static void brokerSend(String realm, String broker, long durationNanos, String status) {
+        Timer.builder(PREFIX + "broker.send")
+                .description("Time spent sending an SMS through a broker")
+                .tag(TAG_REALM, realm)
+                .tag(TAG_BROKER, broker)
+                .tag("status", status)
+                .publishPercentileHistogram()
+                .register(REGISTRY)
+                .record(durationNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public static void codeIssued(String realm, String broker) {
+        counter("codes.issued", "Codes generated and handed to a broker", realm, broker).increment();
+    }
+
+    public static void codeVerified(String realm, String broker, long timeToVerifyMillis) {
+        counter("codes.verified", "Codes entered correctly before expiring", realm, broker).increment();
+        Timer.builder(PREFIX + "time.to.verify")
+                .description("Time between sending a code and the user entering it")
+                .tag(TAG_REALM, realm)
+                .tag(TAG_BROKER, broker)
+                .publishPercentileHistogram()
+                .register(REGISTRY)
+                .record(timeToVerifyMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public static void codeExpired(String realm, String broker) {
+        counter("codes.expired", "Correct codes entered after expiring", realm, broker).increment();
+    }
+
+    public static void invalidAttempt(String realm, String broker) {
+        counter("codes.invalid", "Wrong or malformed codes entered", realm, broker).increment();
+    }
+
+    /**
+     * Records a code submission refused by the brute-force protection.
+     *
+     * @param reason {@code delayed} when the user has to wait before the next attempt, {@code invalidated} when the
+     *               code was dropped after too many wrong entries, or {@code locked_out}
+     */
+    public static void verificationBlocked(String realm, String broker, String reason) {
+        Counter.builder(PREFIX + "verification.blocked")
+                .description("Code submissions refused by the brute-force protection")
+                .tag(TAG_REALM, realm)
+                .tag(TAG_BROKER, broker)
+                .tag("reason", reason)
+                .register(REGISTRY)
+                .increment();
+    }
+
+    /**
+     * Records one delivery receipt posted by a broker.
+     *
+     * @param status {@code sent}, {@code delivered} or {@code failed}
+     */
+    public static void deliveryReceipt(String realm, String broker, String status) {
+        Counter.builder(PREFIX + "delivery.receipts")
+                .description("Delivery receipts posted by the brokers")
+                .tag(TAG_REALM, realm)
+                .tag(TAG_BROKER, broker)
+                .tag("status", status)
+                .register(REGISTRY)
+                .increment();
+    }
+
+    public static void deliveryResent(String realm, String broker) {
+        counter("delivery.resent", "Undelivered codes sent again through another broker", realm, broker).increment();
+    }
+
+    /**
+     * Records a message refused before reaching a broker because its realm is saturated.
+     *
+     * @param reason {@code queue_full}, {@code realm_concurrency}, {@code realm_rate}, {@code broker_concurrency}
+     *               or {@code circuit_open}
+     */
+    public static void rejected(String realm, String reason) {
+        Counter.builder(PREFIX + "rejected")
+                .description("Messages refused because the realm or broker is saturated")
+                .tag(TAG_REALM, realm)
+                .tag("reason", reason)
+                .register(REGISTRY)
+                .increment();
+    }
+
+    /**
+     * Registers a saturation gauge of a realm. The caller removes it with {@link #remove} when the realm goes away.
+     */
+    public static Gauge realmGauge(String name, String description, String realm, Supplier<Number> value) {
+        return Gauge.builder(PREFIX + name, value)
+                .description(description)
+                .tag(TAG_REALM, realm)
+                .register(REGISTRY);
+    }
+
+    public static void remove(Meter meter) {
+        REGISTRY.remove(meter);
+    }
+
+    public static String statusBucket(int httpStatus) {
+        return (httpStatus / 100) + "xx";
+    }
+
+    private static Counter counter(String name, String description, String realm, String broker) {
+        return Counter.builder(PREFIX + name)
+                .description(description)
+                .tag(TAG_REALM, realm)
+                .tag(TAG_BROKER, broker)
+                .register(REGISTRY);
+    }
+}
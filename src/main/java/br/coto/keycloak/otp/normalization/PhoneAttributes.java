@@ -0,0 +1,112 @@
+package br.coto.keycloak.otp.normalization;
+
+import br.coto.keycloak.otp.helpers.PhoneNumbers;
+import org.keycloak.models.UserModel;
+
+/**
+ * User attributes holding the precomputed E.164 form and validity of the phone number, written by
+ * {@link PhoneNormalizationJob}.
+ * <p>
+ * The raw value the flags were computed from is stored with them, so they are only trusted while the phone
+ * attribute still holds that exact value. A number edited after the job ran is simply validated again.
+ * <p>
+ * When unmanaged attributes are enabled, users can edit these attributes themselves, so a stored E.164 number is
+ * only used after checking that it is the raw number without separators, and a number flagged as invalid is
+ * validated again. Both checks are a single pass over the characters.
+ */
+public final class PhoneAttributes {
+
+    public static final String E164 = "sms_otp_phone_e164";
+    public static final String VALID = "sms_otp_phone_valid";
+    public static final String SOURCE = "sms_otp_phone_source";
+    public static final String ATTRIBUTE = "sms_otp_phone_attribute";
+
+    public enum Result {
+        MISSING,
+        VALID,
+        INVALID
+    }
+
+    private PhoneAttributes() {
+    }
+
+    /**
+     * Returns the E.164 form of {@code rawNumber}, or {@code null} if it is not valid, using the precomputed
+     * value when it was computed from the same raw value.
+     */
+    public static String normalized(UserModel user, String rawNumber) {
+        if (Boolean.parseBoolean(user.getFirstAttribute(VALID)) && rawNumber.equals(user.getFirstAttribute(SOURCE))) {
+            String e164 = user.getFirstAttribute(E164);
+            if (PhoneNumbers.isNormalizedFormOf(e164, rawNumber)) {
+                return e164;
+            }
+        }
+        return PhoneNumbers.normalize(rawNumber);
+    }
+
+    /**
+     * Whether the user has a valid phone number, or {@code null} when the job never ran for this user.
+     */
+    public static Boolean hasValidNumber(UserModel user) {
+        String valid = user.getFirstAttribute(VALID);
+        String attribute = user.getFirstAttribute(ATTRIBUTE);
+        if (valid == null || attribute == null) {
+            return null;
+        }
+        String rawNumber = user.getFirstAttribute(attribute);
+        if (rawNumber == null || rawNumber.trim().isEmpty()) {
+            return false;
+        }
+        if (Boolean.parseBoolean(valid) && rawNumber.equals(user.getFirstAttribute(SOURCE))
+                && PhoneNumbers.isNormalizedFormOf(user.getFirstAttribute(E164), rawNumber)) {
+            return true;
+        }
+        return PhoneNumbers.isValid(rawNumber);
+    }
+
+    /**
+     * Normalizes the number held by {@code attribute} and stores the result on the user.
+     *
+     * @return whether the number is valid, and whether an attribute had to be written
+     */
+    static Update update(UserModel user, String attribute) {
+        String rawNumber = user.getFirstAttribute(attribute);
+        boolean changed;
+        if (rawNumber == null || rawNumber.trim().isEmpty()) {
+            changed = remove(user, E164) | set(user, VALID, "false") | remove(user, SOURCE) | set(user, ATTRIBUTE, attribute);
+            return new Update(Result.MISSING, changed);
+        }
+        String e164 = PhoneNumbers.normalize(rawNumber);
+        changed = (e164 != null ? set(user, E164, e164) : remove(user, E164))
+                | set(user, VALID, Boolean.toString(e164 != null))
+                | set(user, SOURCE, rawNumber)
+                | set(user, ATTRIBUTE, attribute);
+        return new Update(e164 != null ? Result.VALID : Result.INVALID, changed);
+    }
+
+    private static boolean set(UserModel user, String name, String value) {
+        if (value.equals(user.getFirstAttribute(name))) {
+            return false;
+        }
+        user.setSingleAttribute(name, value);
+        return true;
+    }
+
+    private static boolean remove(UserModel user, String name) {
+        if (user.getFirstAttribute(name) == null) {
+            return false;
+        }
+        user.removeAttribute(name);
+        return true;
+    }
+
+    static final class Update {
+        final Result result;
+        final boolean changed;
+
+        private Update(Result result, boolean changed) {
+            this.result = result;
+            this.changed = changed;
+        }
+    }
+}
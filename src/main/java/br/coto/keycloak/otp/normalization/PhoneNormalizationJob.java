@@ -0,0 +1,281 @@
+package br.coto.keycloak.otp.normalization;
+
+import jakarta.persistence.EntityManager;
+import lombok.extern.slf4j.Slf4j;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.cache.UserCache;
+import org.keycloak.models.jpa.UserAdapter;
+import org.keycloak.models.jpa.entities.UserEntity;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Normalizes the phone number of every user of a realm and stores the result as {@link PhoneAttributes}.
+ * <p>
+ * Users are read in pages; each worker thread claims the next page and reads, normalizes and writes it in its
+ * own transaction, so a failure only rolls back one page and memory use does not grow with the realm size.
+ * Pages are ordered by username, which the job never changes, and each one starts after the last username of the
+ * previous one, so pages do not overlap and the database never skips rows to reach a page: the last page costs
+ * the same as the first. Users created while the job runs may be missed; running it again is cheap since
+ * unchanged users are not written.
+ * <p>
+ * Pages are read from Keycloak's JPA user table, each page with its attributes in a single query, so only local
+ * users are covered: users of a user federation provider (LDAP, Kerberos, custom storage), whether imported or
+ * not, are skipped and their number is still validated at each login. Users changed by the job are evicted from
+ * the user cache, since the JPA model is written directly.
+ */
+@Slf4j
+public class PhoneNormalizationJob {
+
+    public enum State {
+        RUNNING,
+        COMPLETED,
+        CANCELLED,
+        FAILED
+    }
+
+    private static final String LOCAL_USERS = "from UserEntity u where u.realmId = :realmId"
+            + " and u.serviceAccountClientLink is null and u.federationLink is null";
+    private static final String COUNT = "select count(u) " + LOCAL_USERS;
+    private static final String NEXT_PAGE = "select u.id, u.username " + LOCAL_USERS + " and u.username > :after order by u.username";
+    private static final String LOAD_PAGE = "select distinct u from UserEntity u left join fetch u.attributes where u.id in :ids";
+
+    private final KeycloakSessionFactory factory;
+    private final String realmId;
+    private final String attribute;
+    private final int pageSize;
+    private final int parallelism;
+
+    // Keyset cursor: the last username of the page claimed last
+    private final Object cursorLock = new Object();
+    private String after = "";
+    private int nextPage;
+    private boolean exhausted;
+    private final AtomicLong processed = new AtomicLong();
+    private final AtomicLong valid = new AtomicLong();
+    private final AtomicLong invalid = new AtomicLong();
+    private final AtomicLong missing = new AtomicLong();
+    private final AtomicLong updated = new AtomicLong();
+    private final AtomicInteger failedPages = new AtomicInteger();
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    private volatile State state = State.RUNNING;
+    private volatile long total;
+    private volatile long startedAt;
+    private volatile long finishedAt;
+    private volatile String error;
+
+    public PhoneNormalizationJob(KeycloakSessionFactory factory, String realmId, String attribute, int pageSize, int parallelism) {
+        this.factory = factory;
+        this.realmId = realmId;
+        this.attribute = attribute;
+        this.pageSize = pageSize;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Processes all pages on {@code parallelism} threads and returns when they are done or the job is cancelled.
+     */
+    public void run() {
+        startedAt = System.currentTimeMillis();
+        try {
+            total = KeycloakModelUtils.runJobInTransactionWithResult(factory, session -> em(session)
+                    .createQuery(COUNT, Long.class)
+                    .setParameter("realmId", realmId)
+                    .getSingleResult());
+            log.info("[COTO] Phone normalization started for realm {}: {} users, attribute {}", realmId, total, attribute);
+
+            Thread[] workers = new Thread[parallelism];
+            for (int i = 0; i < parallelism; i++) {
+                workers[i] = new Thread(this::work, "coto-sms-normalize-" + realmId + "-" + (i + 1));
+                workers[i].setDaemon(true);
+                workers[i].start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            if (state == State.RUNNING) {
+                state = failedPages.get() > 0 ? State.FAILED : State.COMPLETED;
+            }
+        } catch (InterruptedException e) {
+            state = State.CANCELLED;
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            error = e.getMessage();
+            state = State.FAILED;
+            log.error("[COTO] Phone normalization failed for realm {}: {}", realmId, e.getMessage(), e);
+        } finally {
+            finishedAt = System.currentTimeMillis();
+            finished.countDown();
+        }
+        log.info("[COTO] Phone normalization {} for realm {}: {} processed, {} valid, {} invalid, {} missing, {} updated in {} ms",
+                state.name().toLowerCase(Locale.ROOT), realmId, processed.get(), valid.get(), invalid.get(), missing.get(), updated.get(),
+                finishedAt - startedAt);
+    }
+
+    public void cancel() {
+        if (state == State.RUNNING) {
+            state = State.CANCELLED;
+        }
+    }
+
+    public boolean isRunning() {
+        return finished.getCount() > 0;
+    }
+
+    public Map<String, Object> status() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("state", isRunning() && state != State.RUNNING ? "CANCELLING" : state.name());
+        status.put("attribute", attribute);
+        status.put("total", total);
+        status.put("processed", processed.get());
+        status.put("valid", valid.get());
+        status.put("invalid", invalid.get());
+        status.put("missing", missing.get());
+        status.put("updated", updated.get());
+        status.put("failedPages", failedPages.get());
+        status.put("progress", total > 0 ? Math.min(100, processed.get() * 100 / total) : (isRunning() ? 0 : 100));
+        status.put("startedAt", startedAt);
+        status.put("finishedAt", isRunning() ? null : finishedAt);
+        status.put("error", error);
+        return status;
+    }
+
+    private void work() {
+        Page page;
+        while (state == State.RUNNING && (page = claimPage()) != null) {
+            List<String> userIds = page.userIds;
+            try {
+                PageResult result = KeycloakModelUtils.runJobInTransactionWithResult(factory, session -> processPage(session, userIds));
+                // Counted once the page is committed, so a page that fails is not reported as processed
+                processed.addAndGet(result.users);
+                valid.addAndGet(result.valid);
+                invalid.addAndGet(result.invalid);
+                missing.addAndGet(result.missing);
+                updated.addAndGet(result.updated);
+                log.debug("[COTO] Phone normalization of realm {}: page {} done, {}/{} users", realmId, page.number, processed.get(), total);
+            } catch (RuntimeException e) {
+                failedPages.incrementAndGet();
+                error = "Page " + page.number + ": " + e.getMessage();
+                log.error("[COTO] Phone normalization of realm {} failed on page {}: {}", realmId, page.number, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Reads the ids of the next page and moves the cursor past it, or returns {@code null} once all users were read.
+     * Only ids are read here, with the realm and username index, so workers wait on each other for a short query.
+     */
+    private Page claimPage() {
+        synchronized (cursorLock) {
+            if (exhausted) {
+                return null;
+            }
+            int number = nextPage++;
+            List<Object[]> rows;
+            try {
+                rows = KeycloakModelUtils.runJobInTransactionWithResult(factory, session -> em(session)
+                        .createQuery(NEXT_PAGE, Object[].class)
+                        .setParameter("realmId", realmId)
+                        .setParameter("after", after)
+                        .setMaxResults(pageSize)
+                        .getResultList());
+            } catch (RuntimeException e) {
+                // The cursor cannot move past a page it could not read
+                exhausted = true;
+                failedPages.incrementAndGet();
+                error = "Page " + number + ": " + e.getMessage();
+                log.error("[COTO] Phone normalization of realm {} could not read page {}: {}", realmId, number, e.getMessage());
+                return null;
+            }
+            exhausted = rows.size() < pageSize;
+            if (rows.isEmpty()) {
+                return null;
+            }
+            List<String> userIds = new ArrayList<>(rows.size());
+            for (Object[] row : rows) {
+                userIds.add((String) row[0]);
+            }
+            after = (String) rows.get(rows.size() - 1)[1];
+            return new Page(number, userIds);
+        }
+    }
+
+    private PageResult processPage(KeycloakSession session, List<String> userIds) {
+        RealmModel realm = realm(session);
+        EntityManager em = em(session);
+        // Users deleted since the page was read are simply not returned
+        List<UserEntity> users = em.createQuery(LOAD_PAGE, UserEntity.class)
+                .setParameter("ids", userIds)
+                .getResultList();
+        UserCache cache = session.getProvider(UserCache.class);
+        PageResult result = new PageResult(users.size());
+        for (UserEntity entity : users) {
+            UserAdapter user = new UserAdapter(session, realm, em, entity);
+            PhoneAttributes.Update update = PhoneAttributes.update(user, attribute);
+            switch (update.result) {
+                case VALID:
+                    result.valid++;
+                    break;
+                case INVALID:
+                    result.invalid++;
+                    break;
+                default:
+                    result.missing++;
+            }
+            if (update.changed) {
+                result.updated++;
+                if (cache != null) {
+                    cache.evict(realm, user);
+                }
+            }
+        }
+        return result;
+    }
+
+    private RealmModel realm(KeycloakSession session) {
+        RealmModel realm = session.realms().getRealm(realmId);
+        if (realm == null) {
+            throw new IllegalStateException("Realm " + realmId + " no longer exists");
+        }
+        session.getContext().setRealm(realm);
+        return realm;
+    }
+
+    private static EntityManager em(KeycloakSession session) {
+        return session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    }
+
+    private static class Page {
+        private final int number;
+        private final List<String> userIds;
+
+        private Page(int number, List<String> userIds) {
+            this.number = number;
+            this.userIds = userIds;
+        }
+    }
+
+    private static class PageResult {
+        private final int users;
+        private long valid;
+        private long invalid;
+        private long missing;
+        private long updated;
+
+        private PageResult(int users) {
+            this.users = users;
+        }
+    }
+}
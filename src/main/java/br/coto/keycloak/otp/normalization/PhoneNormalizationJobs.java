@@ -0,0 +1,58 @@
+package br.coto.keycloak.otp.normalization;
+
+import lombok.extern.slf4j.Slf4j;
+import org.keycloak.models.KeycloakSessionFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Latest phone normalization job of each realm on this node. At most one job runs per realm.
+ */
+@Slf4j
+public class PhoneNormalizationJobs {
+
+    private final int pageSize;
+    private final int parallelism;
+    private final Map<String, PhoneNormalizationJob> jobs = new ConcurrentHashMap<>();
+
+    public PhoneNormalizationJobs(int pageSize, int parallelism) {
+        this.pageSize = pageSize;
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Starts a job for the realm in background.
+     *
+     * @return the new job, or {@code null} if one is already running for the realm
+     */
+    public PhoneNormalizationJob start(KeycloakSessionFactory factory, String realmId, String attribute) {
+        PhoneNormalizationJob job = new PhoneNormalizationJob(factory, realmId, attribute, pageSize, parallelism);
+        PhoneNormalizationJob current = jobs.compute(realmId,
+                (id, previous) -> previous != null && previous.isRunning() ? previous : job);
+        if (current != job) {
+            return null;
+        }
+        Thread thread = new Thread(job::run, "coto-sms-normalize-" + realmId);
+        thread.setDaemon(true);
+        thread.start();
+        return job;
+    }
+
+    public PhoneNormalizationJob get(String realmId) {
+        return jobs.get(realmId);
+    }
+
+    public void evictRealm(String realmId) {
+        PhoneNormalizationJob job = jobs.remove(realmId);
+        if (job != null) {
+            job.cancel();
+        }
+    }
+
+    public void close() {
+        log.debug("[COTO] Cancelling {} phone normalization jobs", jobs.size());
+        jobs.values().forEach(PhoneNormalizationJob::cancel);
+        jobs.clear();
+    }
+}
@@ -0,0 +1,82 @@
+package br.coto.keycloak.otp.normalization;
+
+import br.coto.keycloak.otp.settings.SmsSettings;
+import jakarta.ws.rs.DELETE;
+import jakarta.ws.rs.GET;
+import jakarta.ws.rs.NotFoundException;
+import jakarta.ws.rs.POST;
+import jakarta.ws.rs.Produces;
+import jakarta.ws.rs.QueryParam;
+import jakarta.ws.rs.core.MediaType;
+import jakarta.ws.rs.core.Response;
+import lombok.extern.slf4j.Slf4j;
+import org.keycloak.events.admin.OperationType;
+import org.keycloak.events.admin.ResourceType;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.services.resources.admin.AdminEventBuilder;
+import org.keycloak.services.resources.admin.fgap.AdminPermissionEvaluator;
+
+import java.util.Map;
+
+/**
+ * Admin endpoints of the phone normalization job, under {@code /admin/realms/{realm}/sms-otp/phone-normalization}.
+ * Starting or cancelling the job requires the permission to manage the users of the realm, reading its status
+ * the permission to view them.
+ */
+@Slf4j
+public class PhoneNormalizationResource {
+
+    private final KeycloakSession session;
+    private final RealmModel realm;
+    private final AdminPermissionEvaluator auth;
+    private final AdminEventBuilder adminEvent;
+    private final PhoneNormalizationJobs jobs;
+
+    public PhoneNormalizationResource(KeycloakSession session, RealmModel realm, AdminPermissionEvaluator auth,
+                                      AdminEventBuilder adminEvent, PhoneNormalizationJobs jobs) {
+        this.session = session;
+        this.realm = realm;
+        this.auth = auth;
+        this.adminEvent = adminEvent;
+        this.jobs = jobs;
+    }
+
+    @POST
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response start(@QueryParam("attribute") String attribute) {
+        auth.users().requireManage();
+        String phoneAttribute = attribute == null || attribute.isBlank() ? SmsSettings.DEFAULT_PHONE_ATTRIBUTE : attribute;
+        PhoneNormalizationJob job = jobs.start(session.getKeycloakSessionFactory(), realm.getId(), phoneAttribute);
+        if (job == null) {
+            return Response.status(Response.Status.CONFLICT).entity(jobs.get(realm.getId()).status()).build();
+        }
+        log.info("[COTO] Phone normalization requested for realm {} on attribute {}", realm.getName(), phoneAttribute);
+        adminEvent.operation(OperationType.ACTION).resource(ResourceType.CUSTOM)
+                .resourcePath(session.getContext().getUri()).success();
+        return Response.accepted(job.status()).build();
+    }
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    public Map<String, Object> status() {
+        auth.users().requireView();
+        PhoneNormalizationJob job = jobs.get(realm.getId());
+        if (job == null) {
+            throw new NotFoundException("No phone normalization job on this node");
+        }
+        return job.status();
+    }
+
+    @DELETE
+    @Produces(MediaType.APPLICATION_JSON)
+    public Response cancel() {
+        auth.users().requireManage();
+        PhoneNormalizationJob job = jobs.get(realm.getId());
+        if (job == null || !job.isRunning()) {
+            return Response.status(Response.Status.NOT_FOUND).build();
+        }
+        job.cancel();
+        return Response.accepted(job.status()).build();
+    }
+}
@@ -0,0 +1,73 @@
+package br.coto.keycloak.otp.outbox;
+
+import org.keycloak.crypto.Algorithm;
+import org.keycloak.crypto.KeyUse;
+import org.keycloak.crypto.KeyWrapper;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Encrypts the outbox messages, which hold the code, with the active AES key of the realm ({@code aes-generated}
+ * provider). The stored value is {@code <key id>:<base64 of IV and AES-GCM ciphertext>}, and the row id is bound
+ * as additional data, so a message cannot be moved to another row. Messages stay readable while their key is kept
+ * by the realm, as a passive key after a rotation.
+ */
+final class OutboxCipher {
+
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int IV_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private OutboxCipher() {
+    }
+
+    static String encrypt(KeycloakSession session, RealmModel realm, String rowId, String message) throws GeneralSecurityException {
+        KeyWrapper key = session.keys().getActiveKey(realm, KeyUse.ENC, Algorithm.AES);
+        byte[] iv = new byte[IV_LENGTH];
+        RANDOM.nextBytes(iv);
+        Cipher cipher = cipher(Cipher.ENCRYPT_MODE, key.getSecretKey(), iv, rowId);
+        byte[] encrypted = cipher.doFinal(message.getBytes(StandardCharsets.UTF_8));
+        byte[] stored = ByteBuffer.allocate(iv.length + encrypted.length).put(iv).put(encrypted).array();
+        return key.getKid() + ":" + Base64.getEncoder().encodeToString(stored);
+    }
+
+    static String decrypt(KeycloakSession session, RealmModel realm, String rowId, String stored) throws GeneralSecurityException {
+        int separator = stored != null ? stored.indexOf(':') : -1;
+        if (separator <= 0) {
+            throw new GeneralSecurityException("Message is not encrypted");
+        }
+        KeyWrapper key = session.keys().getKey(realm, stored.substring(0, separator), KeyUse.ENC, Algorithm.AES);
+        if (key == null) {
+            throw new GeneralSecurityException("Key of the message no longer exists");
+        }
+        byte[] bytes;
+        try {
+            bytes = Base64.getDecoder().decode(stored.substring(separator + 1));
+        } catch (IllegalArgumentException e) {
+            throw new GeneralSecurityException("Message is not encrypted", e);
+        }
+        if (bytes.length <= IV_LENGTH) {
+            throw new GeneralSecurityException("Message is truncated");
+        }
+        Cipher cipher = cipher(Cipher.DECRYPT_MODE, key.getSecretKey(), Arrays.copyOf(bytes, IV_LENGTH), rowId);
+        return new String(cipher.doFinal(bytes, IV_LENGTH, bytes.length - IV_LENGTH), StandardCharsets.UTF_8);
+    }
+
+    private static Cipher cipher(int mode, SecretKey key, byte[] iv, String rowId) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(mode, key, new GCMParameterSpec(TAG_BITS, iv));
+        cipher.updateAAD(rowId.getBytes(StandardCharsets.UTF_8));
+        return cipher;
+    }
+}
@@ -0,0 +1,325 @@
+package br.coto.keycloak.otp.outbox;
+
+import br.coto.keycloak.otp.brokers.BrokerRegistry;
+import br.coto.keycloak.otp.brokers.DeliveryTracking;
+import br.coto.keycloak.otp.brokers.IBrokerService;
+import br.coto.keycloak.otp.dispatch.SmsDispatcher;
+import br.coto.keycloak.otp.brokers.routing.RoutingPlan;
+import jakarta.persistence.EntityManager;
+import lombok.extern.slf4j.Slf4j;
+import org.keycloak.connections.jpa.JpaConnectionProvider;
+import org.keycloak.models.AuthenticatorConfigModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.KeycloakSessionFactory;
+import org.keycloak.models.RealmModel;
+import org.keycloak.models.utils.KeycloakModelUtils;
+
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Durable outbox of SMS messages.
+ * <p>
+ * A row is written in the login transaction before the first send attempt, which runs on the dispatcher threads.
+ * The outcome of that attempt is only kept in memory and applied to the database in batches by
+ * {@link #flushSettled(KeycloakSessionFactory)}: sent rows are deleted, failed rows are rescheduled.
+ * Rows whose attempt never settled (node restart, provider outage) become due again and are retried by
+ * {@link #drain(KeycloakSessionFactory, BrokerRegistry, SmsDispatcher)} with exponential backoff, until they are sent,
+ * expire with the code or reach the maximum number of attempts, in which case they are dead-lettered.
+ * The drain runs on Keycloak's shared timer thread, so it only claims rows there, within a time budget; the retries
+ * are sent by the dispatcher and their outcomes applied by the next flush.
+ * Retries are sent with the delivery tracking of the first attempt, so their receipts reach the same login.
+ * <p>
+ * Due rows are claimed with a conditional update before being sent, so several nodes can drain the same table.
+ * <p>
+ * The message holds the code, so it is stored encrypted with the AES key of the realm (see {@link OutboxCipher})
+ * and only decrypted in memory when a row is claimed for a retry.
+ */
+@Slf4j
+public class SmsOutbox {
+
+    // Covers the connect and request timeouts of a broker call, so a row is not retried while its first attempt runs
+    private static final long IN_FLIGHT_MILLIS = TimeUnit.SECONDS.toMillis(90);
+    // Gives the login transaction time to commit before the outcome of its first attempt is written
+    private static final long SETTLE_MILLIS = TimeUnit.SECONDS.toMillis(2);
+    // Time a run may hold the shared timer thread while claiming rows; the rest is claimed by the next runs
+    private static final long DRAIN_BUDGET_MILLIS = TimeUnit.SECONDS.toMillis(1);
+    private static final long DEAD_RETENTION_MILLIS = TimeUnit.DAYS.toMillis(7);
+    private static final int DELETE_CHUNK = 100;
+    private static final int ERROR_LENGTH = 255;
+
+    private final int batchSize;
+    private final int maxAttempts;
+    private final long backoffMillis;
+    private final Queue<Outcome> settled = new ConcurrentLinkedQueue<>();
+    private final Queue<Job> retried = new ConcurrentLinkedQueue<>();
+
+    public SmsOutbox(int batchSize, int maxAttempts, long backoffMillis) {
+        this.batchSize = batchSize;
+        this.maxAttempts = maxAttempts;
+        this.backoffMillis = backoffMillis;
+    }
+
+    /**
+     * Writes the message, encrypted, in the current transaction and returns its id.
+     *
+     * @param tracking delivery tracking of the message, kept so retries are tracked as well; {@code null} if none
+     * @throws GeneralSecurityException when the message cannot be encrypted with the AES key of the realm
+     */
+    public String enqueue(KeycloakSession session, RealmModel realm, String configId, String phoneNumber, String message,
+                          DeliveryTracking tracking, long expiresAt) throws GeneralSecurityException {
+        long now = System.currentTimeMillis();
+        SmsOutboxEntity entity = new SmsOutboxEntity();
+        entity.setId(KeycloakModelUtils.generateId());
+        entity.setRealmId(realm.getId());
+        entity.setConfigId(configId);
+        entity.setPhoneNumber(phoneNumber);
+        entity.setMessage(OutboxCipher.encrypt(session, realm, entity.getId(), message));
+        if (tracking != null) {
+            entity.setMessageId(tracking.getMessageId());
+            entity.setReceiptsUrl(tracking.getReceiptsUrl());
+        }
+        entity.setStatus(SmsOutboxEntity.STATUS_PENDING);
+        entity.setAttempts(0);
+        entity.setNextAttemptAt(now + IN_FLIGHT_MILLIS);
+        entity.setExpiresAt(expiresAt);
+        entity.setCreatedAt(now);
+        em(session).persist(entity);
+        return entity.getId();
+    }
+
+    public void markSent(String id) {
+        settled.add(new Outcome(id, null));
+    }
+
+    public void markFailed(String id, Throwable error) {
+        settled.add(new Outcome(id, describe(error)));
+    }
+
+    /**
+     * Applies the outcomes of the first send attempts and of the retries made on this node.
+     */
+    public void flushSettled(KeycloakSessionFactory factory) {
+        long settledBefore = System.currentTimeMillis() - SETTLE_MILLIS;
+        List<String> sent = new ArrayList<>();
+        List<Outcome> failed = new ArrayList<>();
+        Outcome outcome;
+        while ((outcome = settled.peek()) != null && outcome.at < settledBefore) {
+            settled.poll();
+            if (outcome.error == null) {
+                sent.add(outcome.id);
+            } else {
+                failed.add(outcome);
+            }
+        }
+        // Retried rows were committed before they were claimed, so their outcome is applied right away
+        List<Job> jobs = new ArrayList<>();
+        Job job;
+        while ((job = retried.poll()) != null) {
+            jobs.add(job);
+        }
+        if (sent.isEmpty() && failed.isEmpty() && jobs.isEmpty()) {
+            return;
+        }
+
+        KeycloakModelUtils.runJobInTransaction(factory, session -> {
+            EntityManager em = em(session);
+            deleteAll(em, sent);
+            long now = System.currentTimeMillis();
+            for (Outcome failure : failed) {
+                em.createNamedQuery("rescheduleSmsOutbox")
+                        .setParameter("nextAttemptAt", now + backoff(1))
+                        .setParameter("lastError", truncate(failure.error))
+                        .setParameter("id", failure.id)
+                        .setParameter("status", SmsOutboxEntity.STATUS_PENDING)
+                        .executeUpdate();
+            }
+            applyRetries(em, jobs, now);
+        });
+        log.debug("[COTO] SMS outbox settled: {} sent, {} failed, {} retried", sent.size(), failed.size(), jobs.size());
+    }
+
+    /**
+     * Claims the messages that are due and hands them to the dispatcher. Runs on the timer thread, which it holds
+     * for about {@value #DRAIN_BUDGET_MILLIS} ms at most, and never waits for a send.
+     */
+    public void drain(KeycloakSessionFactory factory, BrokerRegistry brokerRegistry, SmsDispatcher dispatcher) {
+        long deadline = System.currentTimeMillis() + DRAIN_BUDGET_MILLIS;
+        List<Job> jobs = KeycloakModelUtils.runJobInTransactionWithResult(factory, session -> claimDue(session, deadline));
+        if (jobs.isEmpty()) {
+            return;
+        }
+        log.info("[COTO] Retrying {} SMS from the outbox", jobs.size());
+
+        for (Job job : jobs) {
+            try {
+                IBrokerService service = brokerRegistry.get(job.realmId, job.realmName, job.configId, job.plan);
+                dispatcher.trySubmit(job.realmId, job.realmName, service, job.phoneNumber, job.message, job.tracking)
+                        .whenComplete((result, error) -> retried(job, error));
+            } catch (Exception e) {
+                retried(job, e);
+            }
+        }
+    }
+
+    private void retried(Job job, Throwable error) {
+        if (error != null) {
+            job.error = describe(error);
+            log.warn("[COTO] Outbox retry {} of SMS {} failed: {}", job.attempts + 1, job.id, job.error);
+        }
+        retried.add(job);
+    }
+
+    private void applyRetries(EntityManager em, List<Job> jobs, long now) {
+        List<String> sent = new ArrayList<>();
+        for (Job job : jobs) {
+            if (job.error == null) {
+                sent.add(job.id);
+                continue;
+            }
+            SmsOutboxEntity entity = em.find(SmsOutboxEntity.class, job.id);
+            if (entity == null) {
+                continue;
+            }
+            entity.setAttempts(job.attempts + 1);
+            entity.setLastError(truncate(job.error));
+            if (entity.getAttempts() >= maxAttempts || now + backoff(entity.getAttempts()) >= entity.getExpiresAt()) {
+                deadLetter(entity, entity.getLastError());
+            } else {
+                entity.setNextAttemptAt(now + backoff(entity.getAttempts()));
+            }
+        }
+        deleteAll(em, sent);
+    }
+
+    private List<Job> claimDue(KeycloakSession session, long deadline) {
+        EntityManager em = em(session);
+        long now = System.currentTimeMillis();
+        List<SmsOutboxEntity> due = em.createNamedQuery("findDueSmsOutbox", SmsOutboxEntity.class)
+                .setParameter("status", SmsOutboxEntity.STATUS_PENDING)
+                .setParameter("now", now)
+                .setMaxResults(batchSize)
+                .getResultList();
+
+        List<Job> jobs = new ArrayList<>(due.size());
+        for (SmsOutboxEntity entity : due) {
+            if (System.currentTimeMillis() > deadline) {
+                log.debug("[COTO] SMS outbox drain out of time, leaving the remaining due rows for the next run");
+                break;
+            }
+            if (entity.getExpiresAt() <= now) {
+                deadLetter(entity, "Code expired before the SMS could be sent");
+                continue;
+            }
+            RealmModel realm = session.realms().getRealm(entity.getRealmId());
+            AuthenticatorConfigModel config = realm != null ? realm.getAuthenticatorConfigById(entity.getConfigId()) : null;
+            if (config == null) {
+                deadLetter(entity, "Realm or authenticator config no longer exists");
+                continue;
+            }
+            RoutingPlan plan;
+            try {
+                plan = RoutingPlan.fromConfig(config.getConfig());
+            } catch (RuntimeException e) {
+                deadLetter(entity, "Invalid authenticator config: " + e.getMessage());
+                continue;
+            }
+            String message;
+            try {
+                message = OutboxCipher.decrypt(session, realm, entity.getId(), entity.getMessage());
+            } catch (GeneralSecurityException | RuntimeException e) {
+                deadLetter(entity, "Message cannot be decrypted: " + e.getMessage());
+                continue;
+            }
+            int claimed = em.createNamedQuery("claimSmsOutbox")
+                    .setParameter("claimUntil", now + IN_FLIGHT_MILLIS)
+                    .setParameter("id", entity.getId())
+                    .setParameter("nextAttemptAt", entity.getNextAttemptAt())
+                    .executeUpdate();
+            if (claimed == 1) {
+                jobs.add(new Job(entity, realm.getName(), plan, message));
+            }
+        }
+
+        em.createNamedQuery("deleteDeadSmsOutbox")
+                .setParameter("status", SmsOutboxEntity.STATUS_DEAD)
+                .setParameter("before", now - DEAD_RETENTION_MILLIS)
+                .executeUpdate();
+        return jobs;
+    }
+
+    private void deadLetter(SmsOutboxEntity entity, String reason) {
+        log.warn("[COTO] SMS {} moved to the dead-letter state: {}", entity.getId(), reason);
+        entity.setStatus(SmsOutboxEntity.STATUS_DEAD);
+        entity.setLastError(truncate(reason));
+        // The message holds the code, which is useless once dead-lettered
+        entity.setMessage(null);
+    }
+
+    private void deleteAll(EntityManager em, List<String> ids) {
+        for (int i = 0; i < ids.size(); i += DELETE_CHUNK) {
+            em.createNamedQuery("deleteSmsOutboxByIds")
+                    .setParameter("ids", ids.subList(i, Math.min(i + DELETE_CHUNK, ids.size())))
+                    .executeUpdate();
+        }
+    }
+
+    private long backoff(int attempts) {
+        return backoffMillis << Math.min(attempts - 1, 16);
+    }
+
+    private static String describe(Throwable error) {
+        Throwable cause = error instanceof CompletionException && error.getCause() != null ? error.getCause() : error;
+        return cause.getMessage() != null ? cause.getMessage() : cause.getClass().getSimpleName();
+    }
+
+    private static String truncate(String value) {
+        return value != null && value.length() > ERROR_LENGTH ? value.substring(0, ERROR_LENGTH) : value;
+    }
+
+    private static EntityManager em(KeycloakSession session) {
+        return session.getProvider(JpaConnectionProvider.class).getEntityManager();
+    }
+
+    private static class Outcome {
+        private final String id;
+        private final String error;
+        private final long at = System.currentTimeMillis();
+
+        private Outcome(String id, String error) {
+            this.id = id;
+            this.error = error;
+        }
+    }
+
+    private static class Job {
+        private final String id;
+        private final String realmId;
+        private final String realmName;
+        private final String configId;
+        private final RoutingPlan plan;
+        private final String phoneNumber;
+        private final String message;
+        private final DeliveryTracking tracking;
+        private final int attempts;
+        private String error;
+
+        private Job(SmsOutboxEntity entity, String realmName, RoutingPlan plan, String message) {
+            this.id = entity.getId();
+            this.realmId = entity.getRealmId();
+            this.realmName = realmName;
+            this.configId = entity.getConfigId();
+            this.plan = plan;
+            this.phoneNumber = entity.getPhoneNumber();
+            this.message = message;
+            this.tracking = entity.getMessageId() != null && entity.getReceiptsUrl() != null
+                    ? new DeliveryTracking(entity.getMessageId(), entity.getReceiptsUrl()) : null;
+            this.attempts = entity.getAttempts();
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package br.coto.keycloak.otp.outbox;
+
+import jakarta.persistence.Column;
+import jakarta.persistence.Entity;
+import jakarta.persistence.Id;
+import jakarta.persistence.NamedQueries;
+import jakarta.persistence.NamedQuery;
+import jakarta.persistence.Table;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * An SMS waiting to be confirmed as sent. Rows are deleted once the broker accepts the message and
+ * moved to {@link #STATUS_DEAD} when every retry failed or the code expired.
+ */
+@Entity
+@Table(name = "COTO_SMS_OUTBOX")
+@NamedQueries({
+        @NamedQuery(name = "findDueSmsOutbox", query = "select o from SmsOutboxEntity o where o.status = :status and o.nextAttemptAt <= :now order by o.nextAttemptAt"),
+        @NamedQuery(name = "claimSmsOutbox", query = "update SmsOutboxEntity o set o.nextAttemptAt = :claimUntil where o.id = :id and o.nextAttemptAt = :nextAttemptAt"),
+        @NamedQuery(name = "rescheduleSmsOutbox", query = "update SmsOutboxEntity o set o.nextAttemptAt = :nextAttemptAt, o.attempts = o.attempts + 1, o.lastError = :lastError where o.id = :id and o.status = :status"),
+        @NamedQuery(name = "deleteSmsOutboxByIds", query = "delete from SmsOutboxEntity o where o.id in :ids"),
+        @NamedQuery(name = "deleteDeadSmsOutbox", query = "delete from SmsOutboxEntity o where o.status = :status and o.createdAt < :before")
+})
+@Getter
+@Setter
+public class SmsOutboxEntity {
+
+    public static final String STATUS_PENDING = "PENDING";
+    public static final String STATUS_DEAD = "DEAD";
+
+    @Id
+    @Column(name = "ID", length = 36)
+    private String id;
+
+    @Column(name = "REALM_ID", nullable = false, length = 36)
+    private String realmId;
+
+    @Column(name = "CONFIG_ID", nullable = false, length = 36)
+    private String configId;
+
+    @Column(name = "PHONE_NUMBER", length = 32)
+    private String phoneNumber;
+
+    /**
+     * Message encrypted with the AES key of the realm, {@code null} once dead-lettered
+     */
+    @Column(name = "MESSAGE", length = 2048)
+    private String message;
+
+    @Column(name = "STATUS", nullable = false, length = 16)
+    private String status;
+
+    @Column(name = "ATTEMPTS", nullable = false)
+    private int attempts;
+
+    @Column(name = "NEXT_ATTEMPT_AT", nullable = false)
+    private long nextAttemptAt;
+
+    @Column(name = "EXPIRES_AT", nullable = false)
+    private long expiresAt;
+
+    @Column(name = "CREATED_AT", nullable = false)
+    private long createdAt;
+
+    @Column(name = "LAST_ERROR", length = 255)
+    private String lastError;
+
+    /**
+     * Delivery tracking id of the message, {@code null} when delivery receipts are off
+     */
+    @Column(name = "MESSAGE_ID", length = 36)
+    private String messageId;
+
+    /**
+     * Receipts endpoint of the realm, kept with the message because retries run outside of any request
+     */
+    @Column(name = "RECEIPTS_URL", length = 512)
+    private String receiptsUrl;
+}
@@ -0,0 +1,27 @@
+package br.coto.keycloak.otp.outbox;
+
+import org.keycloak.connections.jpa.entityprovider.JpaEntityProvider;
+
+import java.util.List;
+
+public class SmsOutboxJpaEntityProvider implements JpaEntityProvider {
+
+    @Override
+    public List<Class<?>> getEntities() {
+        return List.of(SmsOutboxEntity.class);
+    }
+
+    @Override
+    public String getChangelogLocation() {
+        return "META-INF/coto-sms-outbox-changelog.xml";
+    }
+
+    @Override
+    public String getFactoryId() {
+        return SmsOutboxJpaEntityProviderFactory.PROVIDER_ID;
+    }
+
+    @Override
+    public void close() {
+    }
+}
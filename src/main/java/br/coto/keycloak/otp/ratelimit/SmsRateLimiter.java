@@ -0,0 +1,77 @@
+package br.coto.keycloak.otp.ratelimit;
+
+import lombok.extern.slf4j.Slf4j;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.SingleUseObjectProvider;
+
+/**
+ * Token bucket limiting how many codes are sent per user and per phone number within a realm.
+ * <p>
+ * Each bucket holds up to {@code burst} tokens and gets one token back every {@code refillSeconds}. The bucket is
+ * kept as numbered slots of {@code refillSeconds} each, counted from the epoch, in Keycloak's
+ * {@link SingleUseObjectProvider}, which is backed by a replicated Infinispan cache. A send claims the first free
+ * slot among the current one and the next {@code burst - 1}, with {@link SingleUseObjectProvider#putIfAbsent}, so
+ * every slot goes to a single request of the cluster and concurrent requests cannot overshoot the limit. Slots
+ * expire once the period they stand for has passed.
+ */
+@Slf4j
+public class SmsRateLimiter {
+
+    private static final String KEY_PREFIX = "coto-sms-rate:";
+
+    private final int burst;
+    private final long refillMillis;
+
+    public SmsRateLimiter(int burst, int refillSeconds) {
+        this.burst = burst;
+        this.refillMillis = Math.max(1, refillSeconds) * 1000L;
+    }
+
+    /**
+     * Consumes one token from the user and the phone buckets.
+     *
+     * @return {@code 0} when the send is allowed, otherwise the number of seconds until a token is available
+     */
+    public long tryAcquire(KeycloakSession session, String realmId, String userId, String phoneNumber) {
+        if (burst <= 0) {
+            return 0;
+        }
+        SingleUseObjectProvider store = session.singleUseObjects();
+        long now = System.currentTimeMillis();
+        long current = now / refillMillis;
+
+        String userKey = KEY_PREFIX + realmId + ":user:" + userId;
+        String phoneKey = KEY_PREFIX + realmId + ":phone:" + phoneNumber;
+        long userSlot = claim(store, userKey, current, now);
+        long phoneSlot = userSlot >= 0 ? claim(store, phoneKey, current, now) : -1;
+        if (phoneSlot < 0) {
+            if (userSlot >= 0) {
+                // The phone bucket refused the send, so the token of the user is given back
+                store.remove(slotKey(userKey, userSlot));
+            }
+            log.warn("[COTO] SMS rate limit reached for user {} in realm {}", userId, realmId);
+            long waitMillis = (current + 1) * refillMillis - now;
+            return Math.max(1, (waitMillis + 999) / 1000);
+        }
+        return 0;
+    }
+
+    /**
+     * Claims the first free slot of the bucket from {@code current} on.
+     *
+     * @return the claimed slot, or {@code -1} when the bucket is empty
+     */
+    private long claim(SingleUseObjectProvider store, String key, long current, long now) {
+        for (long slot = current; slot < current + burst; slot++) {
+            long lifespanSeconds = Math.max(1, ((slot + 1) * refillMillis - now + 999) / 1000);
+            if (store.putIfAbsent(slotKey(key, slot), lifespanSeconds)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private static String slotKey(String key, long slot) {
+        return key + ":" + slot;
+    }
+}
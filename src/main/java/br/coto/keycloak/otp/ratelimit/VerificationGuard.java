@@ -0,0 +1,255 @@
+package br.coto.keycloak.otp.ratelimit;
+
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.SingleUseObjectProvider;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Limits how many wrong codes a user can enter, across every authentication session of the realm.
+ * <p>
+ * Failures are counted in Keycloak's {@link SingleUseObjectProvider}, which is backed by a replicated Infinispan
+ * cache, so the count holds across every node of the cluster. After {@value #FREE_FAILURES} failures each new one
+ * makes the user wait twice as long before the next code is checked, up to {@value #MAX_DELAY_SECONDS} seconds,
+ * and after {@code lockoutFailures} failures the user is locked out. The count lives as long as a code, counted
+ * from the last failure. Users without failures only cost a single lookup.
+ * <p>
+ * Before a code is checked, the attempt reserves a numbered slot with {@link SingleUseObjectProvider#putIfAbsent},
+ * which only one request of the cluster can win. Parallel guesses therefore get consecutive slots and are delayed,
+ * locked out or refused by their own number, instead of all reading the same count. The count entry written after
+ * each failure only tells where the next reservation starts and when the user may try again.
+ * <p>
+ * The attempts against a single code are reserved the same way, under a key of the code, and the authenticator
+ * drops the code after {@code maxAttemptsPerCode} failures.
+ */
+public class VerificationGuard {
+
+    static final int FREE_FAILURES = 2;
+    static final int MAX_DELAY_SECONDS = 60;
+
+    private static final String KEY_PREFIX = "coto-sms-verify:";
+    private static final String CODE_KEY_PREFIX = "coto-sms-code:";
+    private static final String FAILURES = "failures";
+    private static final String RETRY_AT = "retryAt";
+    private static final String RESERVED_AT = "reservedAt";
+
+    private final int maxAttemptsPerCode;
+    private final int lockoutFailures;
+    private final int windowSeconds;
+
+    /**
+     * @param maxAttemptsPerCode wrong codes after which the code is dropped (0 = no limit)
+     * @param lockoutFailures    wrong codes after which the user is locked out (0 = no lockout)
+     * @param windowSeconds      how long failures are remembered and a lockout lasts, the code time-to-live
+     */
+    public VerificationGuard(int maxAttemptsPerCode, int lockoutFailures, int windowSeconds) {
+        this.maxAttemptsPerCode = maxAttemptsPerCode;
+        this.lockoutFailures = lockoutFailures;
+        this.windowSeconds = Math.max(1, windowSeconds);
+    }
+
+    /**
+     * Whether a code entered wrong {@code attempts} times must be dropped
+     */
+    public boolean isExhausted(int attempts) {
+        return maxAttemptsPerCode > 0 && attempts >= maxAttemptsPerCode;
+    }
+
+    /**
+     * Recent failures of the user.
+     */
+    public Attempts load(KeycloakSession session, String realmId, String userId) {
+        String key = KEY_PREFIX + realmId + ":" + userId;
+        Map<String, String> notes = session.singleUseObjects().get(key);
+        if (notes == null) {
+            return new Attempts(key, 0, 0);
+        }
+        return new Attempts(key, Integer.parseInt(notes.get(FAILURES)), Long.parseLong(notes.get(RETRY_AT)));
+    }
+
+    /**
+     * Reserves the next attempt of the user. A refused reservation holds no slot.
+     *
+     * @return the reserved attempt, or a refusal with the number of seconds to wait
+     */
+    public Attempt reserve(KeycloakSession session, Attempts attempts) {
+        SingleUseObjectProvider store = session.singleUseObjects();
+        long now = System.currentTimeMillis();
+        int slot = claim(store, attempts.key, attempts.failures + 1, windowSeconds);
+        int failuresBefore = slot - 1;
+
+        if (lockoutFailures > 0 && failuresBefore >= lockoutFailures) {
+            store.remove(slotKey(attempts.key, slot));
+            return new Attempt(attempts, 0, Math.max(attempts.retryAfter(), windowSeconds), true);
+        }
+        if (failuresBefore > FREE_FAILURES) {
+            long previousAt = reservedAt(store, slotKey(attempts.key, failuresBefore), now);
+            long waitMillis = previousAt + delayMillis(failuresBefore) - now;
+            if (waitMillis > 0) {
+                store.remove(slotKey(attempts.key, slot));
+                return new Attempt(attempts, 0, Math.max(1, (waitMillis + 999) / 1000), false);
+            }
+        }
+        store.replace(slotKey(attempts.key, slot), Map.of(RESERVED_AT, Long.toString(now)));
+        return new Attempt(attempts, slot, 0, false);
+    }
+
+    /**
+     * Reserves the next attempt on a code, starting after the {@code attempts} the authentication session knows of.
+     *
+     * @param codeKey identifies the code, e.g. its authentication session and send time
+     * @return the number of the attempt on that code, to be refused when {@link #isOverLimit(int)}
+     */
+    public int reserveOnCode(KeycloakSession session, String codeKey, int attempts) {
+        if (maxAttemptsPerCode <= 0) {
+            return attempts + 1;
+        }
+        return claim(session.singleUseObjects(), CODE_KEY_PREFIX + codeKey, attempts + 1, windowSeconds);
+    }
+
+    /**
+     * Whether attempt number {@code attempt} on a code comes after the code should have been dropped
+     */
+    public boolean isOverLimit(int attempt) {
+        return maxAttemptsPerCode > 0 && attempt > maxAttemptsPerCode;
+    }
+
+    /**
+     * Counts the reserved attempt as a wrong code.
+     *
+     * @return the failures of the user, including this one
+     */
+    public Attempts failed(KeycloakSession session, Attempt attempt) {
+        long now = System.currentTimeMillis();
+        int failures = attempt.slot;
+        long delayMillis = lockoutFailures > 0 && failures >= lockoutFailures ? windowSeconds * 1000L : delayMillis(failures);
+        Attempts next = new Attempts(attempt.attempts.key, failures, now + delayMillis);
+
+        Map<String, String> notes = new HashMap<>();
+        notes.put(FAILURES, Integer.toString(next.failures));
+        notes.put(RETRY_AT, Long.toString(next.retryAt));
+        session.singleUseObjects().put(next.key, Math.max(windowSeconds, (delayMillis + 999) / 1000), notes);
+        return next;
+    }
+
+    /**
+     * Forgets the failures of a user who entered the right code.
+     */
+    public void succeeded(KeycloakSession session, Attempt attempt) {
+        SingleUseObjectProvider store = session.singleUseObjects();
+        for (int slot = 1; slot <= attempt.slot; slot++) {
+            store.remove(slotKey(attempt.attempts.key, slot));
+        }
+        if (attempt.attempts.failures > 0) {
+            store.remove(attempt.attempts.key);
+        }
+    }
+
+    /**
+     * Wait before the code following {@code failures} wrong ones is checked
+     */
+    private static long delayMillis(int failures) {
+        if (failures <= FREE_FAILURES) {
+            return 0;
+        }
+        return Math.min(MAX_DELAY_SECONDS, 1L << Math.min(failures - FREE_FAILURES - 1, 30)) * 1000L;
+    }
+
+    /**
+     * When a slot was reserved: {@code now} for a slot whose reservation is still being written, {@code 0} for an
+     * expired one.
+     */
+    private static long reservedAt(SingleUseObjectProvider store, String slotKey, long now) {
+        Map<String, String> notes = store.get(slotKey);
+        if (notes != null && notes.get(RESERVED_AT) != null) {
+            return Long.parseLong(notes.get(RESERVED_AT));
+        }
+        return notes != null || store.contains(slotKey) ? now : 0;
+    }
+
+    /**
+     * Reserves the first free slot from {@code first} on. Slots live for the window, so a slot below the count is
+     * never reused while the count itself is remembered.
+     */
+    private static int claim(SingleUseObjectProvider store, String key, int first, int lifespanSeconds) {
+        int slot = Math.max(1, first);
+        while (!store.putIfAbsent(slotKey(key, slot), lifespanSeconds)) {
+            slot++;
+        }
+        return slot;
+    }
+
+    private static String slotKey(String key, int slot) {
+        return key + ":" + slot;
+    }
+
+    public class Attempts {
+        private final String key;
+        private final int failures;
+        private final long retryAt;
+
+        private Attempts(String key, int failures, long retryAt) {
+            this.key = key;
+            this.failures = failures;
+            this.retryAt = retryAt;
+        }
+
+        public int getFailures() {
+            return failures;
+        }
+
+        public boolean isLockedOut() {
+            return lockoutFailures > 0 && failures >= lockoutFailures && retryAfter() > 0;
+        }
+
+        /**
+         * @return {@code 0} when the next code can be checked, otherwise the number of seconds to wait
+         */
+        public long retryAfter() {
+            long waitMillis = retryAt - System.currentTimeMillis();
+            return waitMillis > 0 ? Math.max(1, (waitMillis + 999) / 1000) : 0;
+        }
+    }
+
+    /**
+     * An attempt of the user, either holding a reserved slot or refused.
+     */
+    public class Attempt {
+        private final Attempts attempts;
+        private final int slot;
+        private final long retryAfter;
+        private final boolean lockedOut;
+
+        private Attempt(Attempts attempts, int slot, long retryAfter, boolean lockedOut) {
+            this.attempts = attempts;
+            this.slot = slot;
+            this.retryAfter = retryAfter;
+            this.lockedOut = lockedOut;
+        }
+
+        public boolean isGranted() {
+            return slot > 0;
+        }
+
+        public boolean isLockedOut() {
+            return lockedOut;
+        }
+
+        /**
+         * @return the number of seconds to wait when the attempt was refused
+         */
+        public long retryAfter() {
+            return retryAfter;
+        }
+
+        /**
+         * Gives the slot back without counting a failure, when the code was not checked after all
+         */
+        public void release(KeycloakSession session) {
+            if (slot > 0) {
+                session.singleUseObjects().remove(slotKey(attempts.key, slot));
+            }
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package br.coto.keycloak.otp.settings;
+
+import br.coto.keycloak.otp.brokers.routing.RoutingPlan;
+import br.coto.keycloak.otp.helpers.SMSFields;
+import br.coto.keycloak.otp.ratelimit.SmsRateLimiter;
+import br.coto.keycloak.otp.ratelimit.VerificationGuard;
+import lombok.Value;
+
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Validated, immutable view of an authenticator config. Built once per config change by {@link SmsSettingsCache},
+ * so logins do not parse the config map again.
+ */
+@Value
+public class SmsSettings {
+
+    public static final String DEFAULT_PHONE_ATTRIBUTE = "mobile_number";
+
+    String phoneAttribute;
+    int codeLength;
+    int codeTtlSeconds;
+    int resendIntervalSeconds;
+    boolean asyncDispatch;
+    boolean outbox;
+    boolean deliveryReceipts;
+    /**
+     * Name of the main broker, used to tag metrics
+     */
+    String brokerName;
+    SmsRateLimiter rateLimiter;
+    VerificationGuard verificationGuard;
+    RoutingPlan plan;
+
+    /**
+     * @throws IllegalArgumentException when a value is missing or out of range
+     */
+    public static SmsSettings fromConfig(Map<String, String> config) {
+        boolean simulation = Boolean.parseBoolean(config.getOrDefault(SMSFields.SIMULATION_MODE.getValue(), "false"));
+        String broker = config.get(SMSFields.BROKER_LIST.getValue());
+        if (!simulation && (broker == null || broker.isEmpty())) {
+            throw new IllegalArgumentException("[COTO] No SMS broker selected");
+        }
+
+        String phoneAttribute = config.get(SMSFields.PHONE_ATTRIBUTE.getValue());
+        RoutingPlan plan;
+        try {
+            plan = RoutingPlan.fromConfig(config);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("[COTO] Invalid broker routing settings: " + e.getMessage(), e);
+        }
+
+        int codeTtl = number(config, SMSFields.CODE_TTL, 300, 1);
+        return new SmsSettings(
+                phoneAttribute != null && !phoneAttribute.isEmpty() ? phoneAttribute : DEFAULT_PHONE_ATTRIBUTE,
+                number(config, SMSFields.CODE_LENGTH, 6, 1),
+                codeTtl,
+                number(config, SMSFields.RESEND_INTERVAL, 30, 0),
+                Boolean.parseBoolean(config.getOrDefault(SMSFields.ASYNC_DISPATCH.getValue(), "false")),
+                Boolean.parseBoolean(config.getOrDefault(SMSFields.OUTBOX.getValue(), "false")),
+                Boolean.parseBoolean(config.getOrDefault(SMSFields.DELIVERY_RECEIPTS.getValue(), "false")),
+                simulation ? "simulate" : broker.toLowerCase(Locale.ROOT),
+                new SmsRateLimiter(
+                        number(config, SMSFields.RATE_LIMIT_BURST, 3, 0),
+                        number(config, SMSFields.RATE_LIMIT_REFILL_SECONDS, 60, 1)),
+                new VerificationGuard(
+                        number(config, SMSFields.MAX_ATTEMPTS, 5, 0),
+                        number(config, SMSFields.LOCKOUT_ATTEMPTS, 10, 0),
+                        codeTtl),
+                plan);
+    }
+
+    private static int number(Map<String, String> config, SMSFields field, int defaultValue, int min) {
+        String value = config.get(field.getValue());
+        if (value == null || value.trim().isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            int number = Integer.parseInt(value.trim());
+            if (number < min) {
+                throw new IllegalArgumentException("[COTO] " + field.getValue() + " must be at least " + min + ", got " + number);
+            }
+            return number;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("[COTO] " + field.getValue() + " is not a number: " + value);
+        }
+    }
+}
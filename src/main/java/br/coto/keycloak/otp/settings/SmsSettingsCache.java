@@ -0,0 +1,73 @@
+package br.coto.keycloak.otp.settings;
+
+import lombok.extern.slf4j.Slf4j;
+import org.keycloak.models.AuthenticatorConfigModel;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps one {@link SmsSettings} per authenticator config id.
+ * <p>
+ * Each entry remembers the config it was built from and is rebuilt as soon as the config differs. An invalid config
+ * is also cached, so it is reported in the log once and then rejected without being parsed again.
+ */
+@Slf4j
+public class SmsSettingsCache {
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    /**
+     * @throws IllegalArgumentException when the config is missing or invalid
+     */
+    public SmsSettings get(String realmId, AuthenticatorConfigModel config) {
+        if (config == null || config.getConfig() == null) {
+            throw new IllegalArgumentException("[COTO] SMS authenticator has no configuration");
+        }
+        Map<String, String> source = config.getConfig();
+        Entry entry = entries.get(config.getId());
+        if (entry == null || !entry.source.equals(source)) {
+            entry = resolve(realmId, config);
+            entries.put(config.getId(), entry);
+        }
+        if (entry.error != null) {
+            throw new IllegalArgumentException(entry.error);
+        }
+        return entry.settings;
+    }
+
+    public void evictRealm(String realmId) {
+        entries.values().removeIf(entry -> entry.realmId.equals(realmId));
+    }
+
+    public void clear() {
+        entries.clear();
+    }
+
+    private Entry resolve(String realmId, AuthenticatorConfigModel config) {
+        Map<String, String> source = config.getConfig();
+        try {
+            SmsSettings settings = SmsSettings.fromConfig(source);
+            log.debug("[COTO] Settings loaded for authenticator config {}", config.getAlias());
+            return new Entry(realmId, new HashMap<>(source), settings, null);
+        } catch (IllegalArgumentException e) {
+            log.error("[COTO] Invalid SMS authenticator config {}: {}", config.getAlias(), e.getMessage());
+            return new Entry(realmId, new HashMap<>(source), null, e.getMessage());
+        }
+    }
+
+    private static class Entry {
+        private final String realmId;
+        private final Map<String, String> source;
+        private final SmsSettings settings;
+        private final String error;
+
+        private Entry(String realmId, Map<String, String> source, SmsSettings settings, String error) {
+            this.realmId = realmId;
+            this.source = source;
+            this.settings = settings;
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package br.coto.keycloak.otp.settings;
+
+import java.util.MissingFormatArgumentException;
+
+/**
+ * SMS text pattern parsed once, so rendering only appends literals and arguments.
+ * <p>
+ * Supports the subset of {@link String#format} used by message bundles: {@code %s}, {@code %1$s}, {@code %%} and
+ * {@code %n}. Any other conversion keeps the pattern as is and renders it with {@link String#format}.
+ */
+public final class SmsTemplate {
+
+    private final String pattern;
+    private final String[] literals;
+    private final int[] arguments;
+    private final int literalLength;
+
+    private SmsTemplate(String pattern, String[] literals, int[] arguments) {
+        this.pattern = pattern;
+        this.literals = literals;
+        this.arguments = arguments;
+        int length = 0;
+        if (literals != null) {
+            for (String literal : literals) {
+                length += literal.length();
+            }
+        }
+        this.literalLength = length;
+    }
+
+    public static SmsTemplate parse(String pattern) {
+        String[] literals = new String[pattern.length() + 1];
+        int[] arguments = new int[pattern.length()];
+        int count = 0;
+        int nextSequential = 0;
+        StringBuilder literal = new StringBuilder();
+
+        int i = 0;
+        while (i < pattern.length()) {
+            char c = pattern.charAt(i++);
+            if (c != '%') {
+                literal.append(c);
+                continue;
+            }
+            if (i >= pattern.length()) {
+                return new SmsTemplate(pattern, null, null);
+            }
+            char next = pattern.charAt(i);
+            if (next == '%') {
+                literal.append('%');
+                i++;
+            } else if (next == 'n') {
+                literal.append(System.lineSeparator());
+                i++;
+            } else if (next == 's') {
+                literals[count] = literal.toString();
+                arguments[count++] = nextSequential++;
+                literal.setLength(0);
+                i++;
+            } else {
+                int index = 0;
+                int start = i;
+                while (i < pattern.length() && Character.isDigit(pattern.charAt(i))) {
+                    index = index * 10 + (pattern.charAt(i++) - '0');
+                }
+                if (i == start || index == 0 || i + 1 >= pattern.length()
+                        || pattern.charAt(i) != '$' || pattern.charAt(i + 1) != 's') {
+                    return new SmsTemplate(pattern, null, null);
+                }
+                literals[count] = literal.toString();
+                arguments[count++] = index - 1;
+                literal.setLength(0);
+                i += 2;
+            }
+        }
+        literals[count] = literal.toString();
+
+        String[] parsedLiterals = new String[count + 1];
+        int[] parsedArguments = new int[count];
+        System.arraycopy(literals, 0, parsedLiterals, 0, count + 1);
+        System.arraycopy(arguments, 0, parsedArguments, 0, count);
+        return new SmsTemplate(pattern, parsedLiterals, parsedArguments);
+    }
+
+    public String render(Object... args) {
+        if (literals == null) {
+            return String.format(pattern, args);
+        }
+        StringBuilder text = new StringBuilder(literalLength + 32);
+        for (int i = 0; i < arguments.length; i++) {
+            text.append(literals[i]);
+            if (arguments[i] >= args.length) {
+                // Same failure as String.format
+                throw new MissingFormatArgumentException("%" + (arguments[i] + 1) + "$s");
+            }
+            text.append(args[arguments[i]]);
+        }
+        return text.append(literals[arguments.length]).toString();
+    }
+}
@@ -0,0 +1,53 @@
+package br.coto.keycloak.otp.settings;
+
+import lombok.extern.slf4j.Slf4j;
+import org.keycloak.models.ClientModel;
+import org.keycloak.models.KeycloakSession;
+import org.keycloak.models.RealmModel;
+import org.keycloak.theme.Theme;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caches the parsed {@code smsAuthText} message per realm, login theme and locale, so the theme and its message
+ * bundles are only read the first time a combination is used.
+ * <p>
+ * The key holds the login theme selected by the realm and by the client, so switching themes picks up the new
+ * text. Edits to the message files of a deployed theme are seen after a restart.
+ */
+@Slf4j
+public class SmsTemplateCache {
+
+    public static final String MESSAGE_KEY = "smsAuthText";
+    private static final String CLIENT_LOGIN_THEME = "login_theme";
+
+    private final Map<String, Map<String, SmsTemplate>> templates = new ConcurrentHashMap<>();
+
+    public SmsTemplate get(KeycloakSession session, RealmModel realm, ClientModel client, Locale locale) throws IOException {
+        String key = realm.getLoginTheme() + '|' + (client != null ? client.getAttribute(CLIENT_LOGIN_THEME) : null) + '|' + locale.toLanguageTag();
+        Map<String, SmsTemplate> realmTemplates = templates.computeIfAbsent(realm.getId(), id -> new ConcurrentHashMap<>());
+        SmsTemplate template = realmTemplates.get(key);
+        if (template == null) {
+            Theme theme = session.theme().getTheme(Theme.Type.LOGIN);
+            String text = theme.getMessages(locale).getProperty(MESSAGE_KEY);
+            if (text == null) {
+                throw new IOException("Message " + MESSAGE_KEY + " not found in theme " + theme.getName());
+            }
+            log.debug("[COTO] Loaded SMS template for realm {} ({})", realm.getName(), key);
+            template = SmsTemplate.parse(text);
+            realmTemplates.put(key, template);
+        }
+        return template;
+    }
+
+    public void evictRealm(String realmId) {
+        templates.remove(realmId);
+    }
+
+    public void clear() {
+        templates.clear();
+    }
+}
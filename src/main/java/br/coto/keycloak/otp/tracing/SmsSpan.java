@@ -0,0 +1,76 @@
+package br.coto.keycloak.otp.tracing;
+
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.StatusCode;
+import io.opentelemetry.context.Scope;
+
+/**
+ * A span started by {@link SmsTracing#start(Class, String)}, current on the starting thread until it is closed
+ * or {@linkplain #exit() exited}.
+ */
+public final class SmsSpan implements AutoCloseable {
+
+    private static final AttributeKey<String> ERROR_TYPE = AttributeKey.stringKey("error.type");
+
+    private final Span span;
+    private Scope scope;
+
+    SmsSpan(Span span, Scope scope) {
+        this.span = span;
+        this.scope = scope;
+    }
+
+    public SmsSpan realm(String realm) {
+        return attribute(SmsTracing.REALM, realm);
+    }
+
+    public SmsSpan broker(String broker) {
+        return attribute(SmsTracing.BROKER, broker);
+    }
+
+    public SmsSpan outcome(String outcome) {
+        return attribute(SmsTracing.OUTCOME, outcome);
+    }
+
+    public <T> SmsSpan attribute(AttributeKey<T> key, T value) {
+        if (value != null) {
+            span.setAttribute(key, value);
+        }
+        return this;
+    }
+
+    /**
+     * Marks the span as failed. Only the type of the error is kept: broker error messages can quote the phone
+     * number or the text of the message.
+     */
+    public SmsSpan error(Throwable error) {
+        error(span, error);
+        return this;
+    }
+
+    static void error(Span span, Throwable error) {
+        span.setAttribute(ERROR_TYPE, error.getClass().getName());
+        span.setStatus(StatusCode.ERROR, error.getClass().getSimpleName());
+    }
+
+    /**
+     * Stops being the current span of this thread while the span goes on, for operations that complete on
+     * another thread. Must be called on the starting thread.
+     */
+    public void exit() {
+        if (scope != null) {
+            scope.close();
+            scope = null;
+        }
+    }
+
+    /**
+     * Ends the span, on the starting thread unless it was {@linkplain #exit() exited} first.
+     */
+    @Override
+    public void close() {
+        exit();
+        span.end();
+    }
+}
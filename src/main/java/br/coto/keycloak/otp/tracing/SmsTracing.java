@@ -0,0 +1,121 @@
+package br.coto.keycloak.otp.tracing;
+
+import io.opentelemetry.api.OpenTelemetry;
+import io.opentelemetry.api.common.AttributeKey;
+import io.opentelemetry.api.trace.Span;
+import io.opentelemetry.api.trace.Tracer;
+import org.keycloak.tracing.TracingAttributes;
+import org.keycloak.tracing.TracingProvider;
+
+/**
+ * OpenTelemetry spans of the SMS OTP flow.
+ * <p>
+ * Spans are created with the tracer of Keycloak's {@link TracingProvider}, installed when the authenticator
+ * factory starts, so they are exported with the rest of the request when Keycloak is started with
+ * {@code --tracing-enabled=true}, and cost next to nothing otherwise. Each span is a child of the span current on
+ * the calling thread. Attributes never hold phone numbers, codes, message texts or user names.
+ */
+public final class SmsTracing {
+
+    public static final String INSTRUMENTATION_NAME = "br.coto.keycloak.otp";
+
+    public static final AttributeKey<String> REALM = TracingAttributes.REALM_NAME;
+    public static final AttributeKey<String> BROKER = AttributeKey.stringKey("kc.sms.broker");
+    /**
+     * Same value as the {@code status} tag of the broker send timer
+     */
+    public static final AttributeKey<String> SEND_STATUS = AttributeKey.stringKey("kc.sms.status");
+    public static final AttributeKey<Long> HTTP_STATUS = AttributeKey.longKey("http.response.status_code");
+    /**
+     * How the authenticator answered: {@code challenge}, {@code success}, {@code invalid}, {@code expired}...
+     */
+    public static final AttributeKey<String> OUTCOME = AttributeKey.stringKey("kc.sms.outcome");
+
+    private static volatile Tracer tracer = OpenTelemetry.noop().getTracer(INSTRUMENTATION_NAME);
+
+    private SmsTracing() {
+    }
+
+    /**
+     * Uses the tracer of {@code provider}; nothing changes when the server has no tracing provider.
+     */
+    public static void install(TracingProvider provider) {
+        if (provider != null) {
+            install(provider.getTracer(INSTRUMENTATION_NAME));
+        }
+    }
+
+    /**
+     * Replaces the tracer, for instance by one of an SDK with an in-memory exporter.
+     */
+    public static void install(Tracer tracer) {
+        SmsTracing.tracer = tracer;
+    }
+
+    /**
+     * Starts a span named {@code Type.operation} and makes it current on this thread until it is closed.
+     */
+    public static SmsSpan start(Class<?> type, String operation) {
+        Span span = tracer.spanBuilder(type.getSimpleName() + "." + operation).startSpan();
+        return new SmsSpan(span, span.makeCurrent());
+    }
+
+    /**
+     * Runs {@code body} in a span named {@code Type.operation}.
+     */
+    public static <E extends Exception> void inSpan(Class<?> type, String operation, Task<E> body) throws E {
+        inSpan(start(type, operation), body);
+    }
+
+    /**
+     * Runs {@code body} in a span named {@code Type.operation} and returns its result.
+     */
+    public static <T, E extends Exception> T inSpan(Class<?> type, String operation, Body<T, E> body) throws E {
+        return inSpan(start(type, operation), body);
+    }
+
+    /**
+     * Runs {@code body} in {@code span}, which is closed afterwards.
+     */
+    public static <E extends Exception> void inSpan(SmsSpan span, Task<E> body) throws E {
+        try {
+            body.run();
+        } finally {
+            span.close();
+        }
+    }
+
+    /**
+     * Runs {@code body} in {@code span}, which is closed afterwards, and returns its result.
+     */
+    public static <T, E extends Exception> T inSpan(SmsSpan span, Body<T, E> body) throws E {
+        try {
+            return body.call();
+        } finally {
+            span.close();
+        }
+    }
+
+    /**
+     * Marks the current span as failed, like {@link SmsSpan#error(Throwable)}.
+     */
+    public static void error(Throwable error) {
+        SmsSpan.error(Span.current(), error);
+    }
+
+    /**
+     * Code run in a span by {@link #inSpan(SmsSpan, Task)}
+     */
+    @FunctionalInterface
+    public interface Task<E extends Exception> {
+        void run() throws E;
+    }
+
+    /**
+     * Code run in a span by {@link #inSpan(SmsSpan, Body)}, returning a value
+     */
+    @FunctionalInterface
+    public interface Body<T, E extends Exception> {
+        T call() throws E;
+    }
+}
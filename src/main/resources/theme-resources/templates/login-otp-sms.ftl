@@ -19,9 +19,14 @@
                 </div>
             </div>
 
+            <#if deliveryStatusUrl??>
+                <div id="kc-sms-delivery-status" class="${properties.kcFormGroupClass!}" aria-live="polite" hidden></div>
+            </#if>
+
             <div class="${properties.kcFormGroupClass!}">
                 <div id="kc-form-options" class="${properties.kcFormOptionsClass!}">
                     <div class="${properties.kcFormOptionsWrapperClass!}">
+                        <input class="${properties.kcButtonClass!} ${properties.kcButtonDefaultClass!}" name="resend" id="kc-resend" type="submit" value="${msg("smsAuthResend")}" formnovalidate/>
                     </div>
                 </div>
 
@@ -30,5 +35,47 @@
                 </div>
             </div>
         </form>
+        <#if deliveryStatusUrl??>
+            <script>
+                (function () {
+                    // Polls the delivery status of the code until it is delivered or failed
+                    var statusUrl = "${deliveryStatusUrl?js_string?no_esc}";
+                    var messages = {
+                        resent: "${msg("smsAuthDeliveryResent")?js_string?no_esc}",
+                        failed: "${msg("smsAuthDeliveryFailed")?js_string?no_esc}"
+                    };
+                    var element = document.getElementById("kc-sms-delivery-status");
+                    var attempts = 0;
+
+                    function next() {
+                        if (++attempts < 100) {
+                            setTimeout(poll, 3000);
+                        }
+                    }
+
+                    function poll() {
+                        fetch(statusUrl, {cache: "no-store"})
+                            .then(function (response) {
+                                return response.ok ? response.json() : null;
+                            })
+                            .then(function (delivery) {
+                                if (!delivery) {
+                                    return;
+                                }
+                                if (messages[delivery.status]) {
+                                    element.textContent = messages[delivery.status];
+                                    element.hidden = false;
+                                }
+                                if (delivery.status !== "delivered" && delivery.status !== "failed") {
+                                    next();
+                                }
+                            })
+                            .catch(next);
+                    }
+
+                    next();
+                })();
+            </script>
+        </#if>
     </#if>
 </@layout.registrationLayout>
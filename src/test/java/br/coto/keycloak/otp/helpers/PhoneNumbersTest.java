@@ -0,0 +1,40 @@
+package br.coto.keycloak.otp.helpers;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Checks the single-pass validation against the regular expression it replaced.
+ */
+class PhoneNumbersTest {
+
+    private static boolean oldIsValid(String phoneNumber) {
+        String cleanNumber = phoneNumber.replaceAll("[\\s\\-]", "");
+        return cleanNumber.matches("^\\+[1-9]\\d{7,14}$");
+    }
+
+    private static String oldNormalize(String phoneNumber) {
+        return oldIsValid(phoneNumber) ? phoneNumber.replaceAll("[\\s\\-]", "") : null;
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            // 7, 8, 15 and 16 digits
+            "+1234567", "+12345678", "+123456789012345", "+1234567890123456",
+            // Leading 0, missing or repeated plus
+            "+05511987654321", "+0", "5511987654321", "++5511987654321", "+55+11987654321", "55+11987654321",
+            // Separators
+            "+55 11 98765-4321", "+55-11-98765-4321", " +5511987654321 ", "+55\t11\n98765\r4321", "+55\u000B11\f987654321",
+            "+ 5511987654321", "- +5511987654321", "+55 (11) 98765-4321", "+55.11.98765.4321", "+55 11987654321",
+            // Separators around the digit limits
+            "+1 234 567", "+1 234 5678", "+123 456 789 012 345", "+123 456 789 012 3456",
+            // Not a number
+            "", " ", "+", "-", "+55 11 9876a-4321", "+５５11987654321", "+5511987654321x"
+    })
+    void matchesTheOldRegex(String phoneNumber) {
+        assertEquals(oldIsValid(phoneNumber), PhoneNumbers.isValid(phoneNumber), phoneNumber);
+        assertEquals(oldNormalize(phoneNumber), PhoneNumbers.normalize(phoneNumber), phoneNumber);
+    }
+}
@@ -0,0 +1,72 @@
+package br.coto.keycloak.otp.settings;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.util.IllegalFormatException;
+import java.util.MissingFormatArgumentException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Checks that parsed templates render exactly what {@link String#format} renders.
+ */
+class SmsTemplateTest {
+
+    private static final String CODE = "123456";
+    private static final String REALM = "Coto";
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "",
+            "No arguments",
+            // %s
+            "%s",
+            "Your code is %s",
+            "%s is your code for %s",
+            // %1$s
+            "%1$s",
+            "%2$s: your code is %1$s",
+            "%1$s, again %1$s",
+            "%s then %1$s then %s",
+            // %% and %n
+            "100%% safe: %s",
+            "%%s is not an argument",
+            "%s%nSent by %s",
+            "%n%%%n",
+            // Anything else falls back to String.format
+            "%S",
+            "[%-10s] %s",
+            "%2$s%1$s",
+            "%.3s",
+            "%b %s"
+    })
+    void rendersLikeStringFormat(String pattern) {
+        assertEquals(String.format(pattern, CODE, REALM), SmsTemplate.parse(pattern).render(CODE, REALM), pattern);
+    }
+
+    @Test
+    void rendersTheBundleExamples() {
+        assertEquals("Your code is 123456", SmsTemplate.parse("Your code is %s").render(CODE, REALM));
+        assertEquals("Coto: 123456", SmsTemplate.parse("%2$s: %1$s").render(CODE, REALM));
+        assertEquals("100% 123456", SmsTemplate.parse("100%% %s").render(CODE, REALM));
+        assertEquals("123456" + System.lineSeparator() + "Coto", SmsTemplate.parse("%s%n%s").render(CODE, REALM));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"%3$s", "%10$s", "%s %s %s"})
+    void failsLikeStringFormatOnMissingArguments(String pattern) {
+        assertThrows(MissingFormatArgumentException.class, () -> String.format(pattern, CODE, REALM));
+        assertThrows(MissingFormatArgumentException.class, () -> SmsTemplate.parse(pattern).render(CODE, REALM));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {"Trailing %", "%d", "%0$s", "%1$"})
+    void fallsBackToStringFormatOnOtherConversions(String pattern) {
+        Class<? extends Exception> expected = assertThrows(IllegalFormatException.class,
+                () -> String.format(pattern, CODE, REALM)).getClass();
+        assertThrows(expected, () -> SmsTemplate.parse(pattern).render(CODE, REALM));
+    }
+}